@@ -0,0 +1,154 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+
+/**
+ * Content-addressed spool for shared files. An upload is streamed to a temp file while its
+ * SHA-256 is computed, then renamed to the hex digest, so identical files are stored once.
+ * Chat messages only carry the digest; clients download the bytes on demand from a
+ * separate blob port, which sends them with FileChannel.transferTo (no copy through the heap).
+ *
+ * Fetch protocol on the blob port: the client sends "GET <sha256>\n" and gets either
+ * "OK <size>\n" followed by the bytes, or "NOT_FOUND\n".
+ */
+class BlobStore {
+    private static final int MAX_REQUEST_LINE = 128;
+
+    private final Path dir;
+
+    BlobStore(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+    }
+
+    /** True for a well-formed digest that is already stored. */
+    boolean contains(String hash) {
+        return Protocol.isHash(hash) && Files.isRegularFile(dir.resolve(hash));
+    }
+
+    long size(String hash) throws IOException {
+        return Files.size(dir.resolve(hash));
+    }
+
+    /** @param filename the name the uploader gave the file; kept for the announcement only */
+    Upload begin(String filename) throws IOException {
+        return new Upload(filename);
+    }
+
+    /** One file being spooled; not thread-safe, owned by the uploading client's reader. */
+    class Upload {
+        final String filename;
+        private final Path temp;
+        private final FileChannel channel;
+        private final MessageDigest digest = Protocol.sha256();
+        private long size;
+
+        private Upload(String filename) throws IOException {
+            this.filename = filename;
+            this.temp = Files.createTempFile(dir, "upload-", ".part");
+            this.channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        }
+
+        void write(byte[] data) throws IOException {
+            digest.update(data);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            size += data.length;
+        }
+
+        long size() {
+            return size;
+        }
+
+        /**
+         * Closes the upload and files it under its digest. If the same content is already
+         * stored, the new copy is simply dropped.
+         * @return the SHA-256 of the content, in hex
+         */
+        String commit() throws IOException {
+            channel.close();
+            String hash = Protocol.hex(digest.digest());
+            Path target = dir.resolve(hash);
+            if (Files.exists(target)) {
+                Files.delete(temp);
+            } else {
+                // atomic, so a concurrent fetch never sees a half-written blob
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return hash;
+        }
+
+        void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                System.out.println("Error removing upload " + temp + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Starts the blob download listener on a daemon thread. */
+    void serve(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        System.out.println("Blob store " + dir.toAbsolutePath() + " served on port " + port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    SocketChannel channel = server.accept();
+                    ChatServer.start(() -> fetch(channel));
+                } catch (IOException e) {
+                    System.out.println("Error accepting blob fetch: " + e.getMessage());
+                }
+            }
+        }, "blob-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void fetch(SocketChannel channel) {
+        try (SocketChannel c = channel) {
+            String hash = readRequest(c);
+            if (hash == null || !contains(hash)) {
+                c.write(ByteBuffer.wrap("NOT_FOUND\n".getBytes(StandardCharsets.US_ASCII)));
+                return;
+            }
+            try (FileChannel file = FileChannel.open(dir.resolve(hash), StandardOpenOption.READ)) {
+                long size = file.size();
+                ByteBuffer header = ByteBuffer.wrap(("OK " + size + "\n").getBytes(StandardCharsets.US_ASCII));
+                while (header.hasRemaining()) {
+                    c.write(header);
+                }
+                long position = 0;
+                while (position < size) {
+                    position += file.transferTo(position, size - position, c);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error serving blob: " + e.getMessage());
+        }
+    }
+
+    // Reads "GET <hash>\n" one byte at a time so nothing past the request is consumed
+    private static String readRequest(SocketChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        StringBuilder line = new StringBuilder();
+        while (line.length() < MAX_REQUEST_LINE) {
+            one.clear();
+            if (channel.read(one) < 0) return null;
+            char c = (char) one.get(0);
+            if (c == '\n') {
+                String request = line.toString().trim();
+                return request.startsWith("GET ") ? request.substring(4).trim() : null;
+            }
+            line.append(c);
+        }
+        return null;
+    }
+}
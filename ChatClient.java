@@ -10,12 +10,21 @@ import java.util.Date;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.function.BiConsumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 
 class BubbleBorder extends AbstractBorder {
     private Color color;
@@ -75,7 +84,10 @@ class BubbleBorder extends AbstractBorder {
 
 public class ChatClient extends JFrame {
     private JTextArea chatArea;
-    private JPanel messagePanel;
+    // Shows the current room's history; each message is one row drawn by BubbleRenderer
+    private JList<MessageHistory.Entry> messageList;
+    // The history messages are added to: the current room's, except briefly in showRoomChat
+    private MessageHistory messages;
     private JScrollPane chatScroll;
     private JTextField messageField;
     private JButton sendButton;
@@ -83,12 +95,71 @@ public class ChatClient extends JFrame {
     private JToggleButton darkModeToggle;
     private JList<String> userList;
     private DefaultListModel<String> userListModel;
+    // username -> its current "username (status)" row in userListModel
+    private final HashMap<String, String> userDisplays = new HashMap<>();
     private JLabel userEventLabel;
     private JLabel chatTargetLabel;
     private JComboBox<String> statusCombo;
+    // Room switcher, shown if the server accepted HELLO::rooms
+    private JComboBox<String> roomCombo;
+    private JButton joinRoomButton;
+    private JButton leaveRoomButton;
+    // One history per room; general also shows DMs, files and system messages. EDT only.
+    private final Map<String, MessageHistory> roomHistories = new LinkedHashMap<>();
+    // Messages kept in memory per room, and how many are read back at a time when scrolling up
+    private static final int HISTORY_WINDOW = 1000;
+    private static final int HISTORY_PAGE = 200;
+    private String currentRoom = Protocol.DEFAULT_ROOM;
+    // What the receive thread has for the EDT, applied in batches by drainInbox
+    private final ConcurrentLinkedQueue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    // How long one drain may run: about half a 60 Hz frame, leaving the rest for layout and painting
+    private static final long DRAIN_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(8);
+    // While set, added messages leave scrolling to the end of the batch
+    private boolean draining;
+    // Set when an own message is added: the view jumps to it even if the user scrolled up
+    private boolean showNewest;
+    // Pixels from the bottom that still count as following the newest message
+    private static final int BOTTOM_SLACK = 24;
+    private Timer userEventTimer;
     private Socket socket;
-    private PrintWriter out;
+    // Replaced on reconnect, so read once per use
+    private volatile PrintWriter out;
     private BufferedReader in;
+    // Set when the server accepted binary framing (see FrameCodec); null on the text protocol
+    private volatile DataOutputStream frameOut;
+    private DataInputStream frameIn;
+    // From the server's SESSION message; with received, lets a reconnect resume the session
+    private volatile String sessionToken;
+    // Sequence numbers received lately; replayed or repeated messages among them are skipped
+    private final ReceivedSeqs received = new ReceivedSeqs(256);
+    private int serverPort;
+    // Delay before reconnect attempt n: random in [0, min(max, base * 2^n)] ("full jitter"),
+    // so clients that lost the server together do not all come back at the same moment
+    private static final long RECONNECT_BASE_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 30_000;
+    // A connection that lasted this long starts the backoff over; shorter ones keep growing it
+    private static final long RECONNECT_STABLE_MILLIS = 10_000;
+    private int reconnectAttempt;
+    private volatile long connectedAt;
+    // Set when the server refused our username; retrying would not help
+    private volatile boolean nameRefused;
+    // statusCombo's value, re-sent after logging in again
+    private volatile String status = "Online";
+    // Set when the server accepted HELLO::file-chunks; otherwise files go as one FILE:: message
+    private boolean fileChunks;
+    // Blob port from HELLO_OK's file-refs=<port>; files are then uploaded once and fetched on demand
+    private int blobPort = -1;
+    private String serverHost;
+    // Files offered to the server and waiting for its FILE_ACK, by transfer id
+    private final ConcurrentHashMap<String, File> pendingOffers = new ConcurrentHashMap<>();
+    private final AtomicInteger transferIds = new AtomicInteger();
+    // Streamed files being received, by transfer id; only touched by the receive thread
+    private final HashMap<String, IncomingFile> incomingFiles = new HashMap<>();
+    // Splits text-protocol lines; only used by the receive thread
+    private final CommandParser parser = new CommandParser();
+    // Received files waiting to be saved or dismissed, above the input field
+    private FileTransfers transfers;
     private String username;
     private JPopupMenu emojiMenu;
     private static final HashMap<String, String> EMOJIS = new HashMap<String, String>() {{
@@ -140,7 +211,8 @@ public class ChatClient extends JFrame {
     statusCombo.setFocusable(false);
     statusCombo.addActionListener(e -> {
         String s = (String) statusCombo.getSelectedItem();
-        if (out != null) out.println("STATUS::" + s);
+        status = s;
+        if (out != null) sendCommand(FrameCodec.STATUS, "STATUS::" + s, s);
     });
     rightBox.add(Box.createRigidArea(new Dimension(8,0)));
     rightBox.add(statusCombo);
@@ -148,6 +220,24 @@ public class ChatClient extends JFrame {
     // Add a left-side area to show current chat target
     JPanel leftBox = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 0));
     leftBox.setOpaque(false);
+    roomCombo = new JComboBox<>(new String[]{Protocol.DEFAULT_ROOM});
+    roomCombo.setFocusable(false);
+    roomCombo.addActionListener(e -> switchRoom((String) roomCombo.getSelectedItem()));
+    joinRoomButton = new JButton("+");
+    joinRoomButton.setToolTipText("Join a room");
+    joinRoomButton.setFocusPainted(false);
+    joinRoomButton.addActionListener(e -> {
+        String name = JOptionPane.showInputDialog(this, "Room to join:", "Join room", JOptionPane.PLAIN_MESSAGE);
+        if (name != null && !name.trim().isEmpty()) joinRoom(name);
+    });
+    leaveRoomButton = new JButton("Leave");
+    leaveRoomButton.setFocusPainted(false);
+    leaveRoomButton.setEnabled(false);
+    leaveRoomButton.addActionListener(e -> leaveRoom());
+    for (JComponent c : new JComponent[]{roomCombo, joinRoomButton, leaveRoomButton}) {
+        c.setVisible(false);
+        leftBox.add(c);
+    }
     chatTargetLabel = new JLabel("Chatting with: All");
     chatTargetLabel.setFont(new Font("Arial", Font.BOLD, 12));
     leftBox.add(chatTargetLabel);
@@ -164,7 +254,7 @@ public class ChatClient extends JFrame {
             if (!e.getValueIsAdjusting()) {
                 String sel = userList.getSelectedValue();
                 if (sel == null || sel.trim().isEmpty()) {
-                    chatTargetLabel.setText("Chatting with: All");
+                    chatTargetLabel.setText("Chatting with: " + roomTarget());
                 } else {
                     // display is like "username (Online)" — strip status
                     String name = sel.split(" ")[0];
@@ -189,36 +279,23 @@ public class ChatClient extends JFrame {
 
     add(leftPanel, BorderLayout.WEST);
 
-    // Center: messages panel with chat-bubble UI
-    messagePanel = new JPanel();
-    messagePanel.setLayout(new BoxLayout(messagePanel, BoxLayout.Y_AXIS));
-    messagePanel.setBackground(Color.WHITE);
+    // Center: the chat history as a list of bubbles; only the rows on screen are drawn
+    messages = new MessageHistory(HISTORY_WINDOW, HISTORY_PAGE);
+    roomHistories.put(Protocol.DEFAULT_ROOM, messages);
+    messageList = new JList<>(messages);
+    messageList.setCellRenderer(new BubbleRenderer());
+    messageList.setBackground(Color.WHITE);
+    messageList.setFocusable(false);
 
-    chatScroll = new JScrollPane(messagePanel);
+    chatScroll = new JScrollPane(messageList);
     chatScroll.setBorder(BorderFactory.createTitledBorder("Chat"));
-    add(chatScroll, BorderLayout.CENTER);
-
-    // Use a font that supports emojis for bubble labels
-    Font bubbleFont;
-        try {
-            // Try using system emoji fonts in order of preference
-            String[] emojiFonts = {"Segoe UI Emoji", "Apple Color Emoji", "Noto Color Emoji", "Noto Emoji"};
-            Font emojiFont = null;
-            for (String fontName : emojiFonts) {
-                if (Arrays.asList(GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames()).contains(fontName)) {
-                    emojiFont = new Font(fontName, Font.PLAIN, 14);
-                    break;
-                }
-            }
-            if (emojiFont != null) {
-                bubbleFont = emojiFont;
-            } else {
-                bubbleFont = new Font("Dialog", Font.PLAIN, 14);
-            }
-        } catch (Exception e) {
-            bubbleFont = new Font("Dialog", Font.PLAIN, 14);
+    // scrolling to the top brings back older messages
+    chatScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+        if (!e.getValueIsAdjusting() && e.getValue() == 0 && messages.hasOlder()) {
+            SwingUtilities.invokeLater(this::loadOlderMessages);
         }
-    // chatScroll already has a titled border
+    });
+    add(chatScroll, BorderLayout.CENTER);
 
         // Bottom: Input panel
         JPanel bottomPanel = new JPanel(new BorderLayout());
@@ -378,32 +455,11 @@ public class ChatClient extends JFrame {
     inputPanel.add(messageField, BorderLayout.CENTER);
     inputPanel.add(sendButton, BorderLayout.EAST);
 
+        transfers = new FileTransfers(Paths.get(System.getProperty("user.home"), "Downloads"));
+        bottomPanel.add(transfers, BorderLayout.NORTH);
         bottomPanel.add(inputPanel, BorderLayout.CENTER);
         add(bottomPanel, BorderLayout.SOUTH);
 
-        // Helper to add a message bubble
-        final Font finalBubbleFont = bubbleFont;
-        Runnable ensureScroll = () -> SwingUtilities.invokeLater(() -> {
-            JScrollBar v = chatScroll.getVerticalScrollBar();
-            v.setValue(v.getMaximum());
-        });
-
-        // method: addMessage
-        BiConsumer<String, String> addOwnMessage = (sender, text) -> {
-            JPanel bubble = createBubble(sender, text, true, finalBubbleFont);
-            messagePanel.add(bubble);
-            messagePanel.add(Box.createVerticalStrut(6));
-            ensureScroll.run();
-            messagePanel.revalidate();
-        };
-        BiConsumer<String, String> addOtherMessage = (sender, text) -> {
-            JPanel bubble = createBubble(sender, text, false, finalBubbleFont);
-            messagePanel.add(bubble);
-            messagePanel.add(Box.createVerticalStrut(6));
-            ensureScroll.run();
-            messagePanel.revalidate();
-        };
-
         // Event listeners
         sendButton.addActionListener(e -> sendMessage());
         messageField.addActionListener(e -> sendMessage());
@@ -434,53 +490,195 @@ public class ChatClient extends JFrame {
     }
 
     /**
-     * Try to connect to server, prompting for host/port and allowing retries.
-     * @return true if connected successfully, false if the user cancelled / chose not to retry
+     * Try to connect to server, prompting for host/port. A failed attempt is retried after
+     * a backoff delay, unless the user cancels or picks another server.
+     * @return true if connected successfully, false if the user cancelled
      */
     private boolean connectToServer() {
         String host = "127.0.0.1";
         int port = 1234;
+        boolean prompt = true;
+        int attempt = 0;
 
         while (true) {
             try {
-                String hostInput = (String) JOptionPane.showInputDialog(this, "Server host:", "Connect", JOptionPane.PLAIN_MESSAGE, null, null, host);
-                if (hostInput == null) return false; // user cancelled
-                String portInput = (String) JOptionPane.showInputDialog(this, "Server port:", "Connect", JOptionPane.PLAIN_MESSAGE, null, null, Integer.toString(port));
-                if (portInput == null) return false;
-
-                host = hostInput.trim();
-                port = Integer.parseInt(portInput.trim());
-
-                System.out.println("Attempting to connect to server at " + host + ":" + port + " ...");
-                socket = new Socket();
-                socket.connect(new InetSocketAddress(host, port), 5000); // 5s timeout
-
-                System.out.println("Connected to server");
-                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), java.nio.charset.StandardCharsets.UTF_8), true);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), java.nio.charset.StandardCharsets.UTF_8));
-
-                // Read the server's username prompt (if any) and send username
-                try {
-                    socket.setSoTimeout(3000);
-                    String prompt = in.readLine();
-                    System.out.println("Server says: " + prompt);
-                } catch (IOException ignored) {
-                    // server may not send a prompt; continue
-                } finally {
-                    try { socket.setSoTimeout(0); } catch (SocketException ignored) {}
+                if (prompt) {
+                    String hostInput = (String) JOptionPane.showInputDialog(this, "Server host:", "Connect", JOptionPane.PLAIN_MESSAGE, null, null, host);
+                    if (hostInput == null) return false; // user cancelled
+                    String portInput = (String) JOptionPane.showInputDialog(this, "Server port:", "Connect", JOptionPane.PLAIN_MESSAGE, null, null, Integer.toString(port));
+                    if (portInput == null) return false;
+
+                    host = hostInput.trim();
+                    port = Integer.parseInt(portInput.trim());
+                    prompt = false;
+                    attempt = 0;
                 }
 
-                out.println(username);
-                System.out.println("Sent username: " + username);
+                openSession(host, port);
                 return true;
             } catch (NumberFormatException nfe) {
                 JOptionPane.showMessageDialog(this, "Invalid port number. Please enter a numeric port.");
-                continue;
             } catch (IOException e) {
-                e.printStackTrace();
-                int option = JOptionPane.showConfirmDialog(this, "Unable to connect to server: " + e.getMessage() + "\nRetry?", "Connection failed", JOptionPane.YES_NO_OPTION, JOptionPane.ERROR_MESSAGE);
-                if (option != JOptionPane.YES_OPTION) return false;
-                // else loop and prompt again
+                System.out.println("Connection attempt " + (attempt + 1) + " failed: " + e.getMessage());
+                String choice = waitToRetry("Unable to connect to server: " + e.getMessage(), backoffMillis(attempt++));
+                if ("Change server".equals(choice)) {
+                    prompt = true;
+                } else if (!"Retry now".equals(choice)) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /** The jittered delay before reconnect attempt n (from 0). */
+    private static long backoffMillis(int attempt) {
+        long cap = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * Shows the error with a countdown to the next attempt. The dialog is modal, so the EDT
+     * keeps painting while it waits.
+     * @return "Retry now" when the countdown ends or is skipped, "Change server", or null if cancelled
+     */
+    private String waitToRetry(String error, long delayMillis) {
+        String[] options = {"Retry now", "Change server", "Cancel"};
+        JOptionPane pane = new JOptionPane(error, JOptionPane.ERROR_MESSAGE, JOptionPane.DEFAULT_OPTION, null, options, options[0]);
+        long retryAt = System.currentTimeMillis() + delayMillis;
+        Timer countdown = new Timer(250, null);
+        countdown.addActionListener(e -> {
+            long left = retryAt - System.currentTimeMillis();
+            if (left <= 0) {
+                countdown.stop();
+                pane.setValue(options[0]); // closes the dialog
+            } else {
+                pane.setMessage(error + "\nRetrying in " + ((left + 999) / 1000) + " s...");
+            }
+        });
+        pane.setMessage(error + "\nRetrying in " + ((delayMillis + 999) / 1000) + " s...");
+        countdown.start();
+        JDialog dialog = pane.createDialog(this, "Connection failed");
+        dialog.setVisible(true);
+        countdown.stop();
+        dialog.dispose();
+        Object value = pane.getValue();
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * Connects and negotiates protocol features, then logs in, or resumes the previous
+     * session if the server gave us a token.
+     */
+    private void openSession(String host, int port) throws IOException {
+        System.out.println("Attempting to connect to server at " + host + ":" + port + " ...");
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), 5000); // 5s timeout
+
+        System.out.println("Connected to server");
+        connectedAt = System.currentTimeMillis();
+        frameOut = null;
+        frameIn = null;
+        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), java.nio.charset.StandardCharsets.UTF_8), true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), java.nio.charset.StandardCharsets.UTF_8));
+
+        // Read the server's username prompt (if any) and send username
+        String prompt = null;
+        try {
+            socket.setSoTimeout(3000);
+            prompt = in.readLine();
+            System.out.println("Server says: " + prompt);
+        } catch (IOException ignored) {
+            // server may not send a prompt; continue
+        } finally {
+            try { socket.setSoTimeout(0); } catch (SocketException ignored) {}
+        }
+
+        List<String> accepted = new ArrayList<>();
+        if (prompt != null && prompt.endsWith(FrameCodec.HELLO_PROMPT_SUFFIX)) {
+            // Ask for incremental presence updates and binary frames, then wait for the
+            // server's answer before sending anything else
+            out.println("HELLO::presence,binary,file-chunks,file-refs,resume,rooms,heartbeat");
+            try {
+                socket.setSoTimeout(3000);
+                String ack = in.readLine();
+                if (ack != null && ack.startsWith("HELLO_OK::")) {
+                    accepted = Arrays.asList(ack.substring("HELLO_OK::".length()).split(","));
+                }
+            } catch (IOException ignored) {
+                // no answer; stay on the text protocol
+            } finally {
+                try { socket.setSoTimeout(0); } catch (SocketException ignored) {}
+            }
+        } else {
+            // an older server would take HELLO for our username; log in on the original protocol
+            System.out.println("Server does not accept HELLO; using the original protocol");
+        }
+
+        fileChunks = accepted.contains("file-chunks");
+        boolean rooms = accepted.contains("rooms");
+        SwingUtilities.invokeLater(() -> {
+            roomCombo.setVisible(rooms);
+            joinRoomButton.setVisible(rooms);
+            leaveRoomButton.setVisible(rooms);
+        });
+        serverHost = host;
+        serverPort = port;
+        for (String feature : accepted) {
+            if (feature.startsWith("file-refs=")) blobPort = Integer.parseInt(feature.substring("file-refs=".length()));
+        }
+        if (accepted.contains("binary")) {
+            frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            System.out.println("Using binary frames");
+        }
+        String token = sessionToken;
+        if (token != null && accepted.contains("resume")) {
+            // pick up where we left off; the server answers RESUME_FAILED if the session is gone
+            String seq = String.valueOf(received.resumeAfter());
+            sendCommand(FrameCodec.RESUME, "RESUME::" + token + "::" + seq, token, seq);
+            System.out.println("Resuming session after message " + seq);
+        } else {
+            sessionToken = null;
+            logIn();
+            System.out.println("Sent username: " + username);
+            // rooms joined before a reconnect; none on the first connect
+            deliver(this::rejoinRooms);
+        }
+
+    }
+
+    /** Logs in with our username, and our status if it is not the default. */
+    private void logIn() {
+        sendCommand(FrameCodec.LOGIN, username, username);
+        String current = status;
+        if (!"Online".equals(current)) {
+            sendCommand(FrameCodec.STATUS, "STATUS::" + current, current);
+        }
+    }
+
+    /**
+     * Called when the connection drops. Reconnects in the background until it works,
+     * waiting a jittered, exponentially growing delay before each attempt, then resumes
+     * the session if the server gave us a token or else logs in again.
+     */
+    private void reconnect() {
+        if (nameRefused) return;
+        if (System.currentTimeMillis() - connectedAt >= RECONNECT_STABLE_MILLIS) {
+            reconnectAttempt = 0;
+        }
+        deliver(() -> addMessage("", "Reconnecting...", false));
+        while (true) {
+            long delay = backoffMillis(reconnectAttempt++);
+            try {
+                Thread.sleep(delay);
+                openSession(serverHost, serverPort);
+                deliver(() -> addMessage("", "Reconnected.", false));
+                new Thread(this::receiveMessages).start();
+                return;
+            } catch (IOException e) {
+                System.out.println("Reconnect attempt " + reconnectAttempt + " failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return;
             }
         }
     }
@@ -493,354 +691,845 @@ public class ChatClient extends JFrame {
                 // Strip (status) from display name if present
                 String recipient = selectedUser.split(" ")[0];
                 // Send as direct message
-                out.println("DM::" + recipient + "::" + message);
+                sendCommand(FrameCodec.DM, "DM::" + recipient + "::" + message, recipient, message);
+            } else if (!Protocol.DEFAULT_ROOM.equals(currentRoom)) {
+                sendCommand(FrameCodec.ROOM_CHAT, "ROOM::" + currentRoom + "::" + message, currentRoom, message);
             } else {
                 // Broadcast to all
-                out.println(message);
+                sendCommand(FrameCodec.CHAT, message, message);
             }
             messageField.setText("");
         }
     }
 
+    /**
+     * Sends one command as a binary frame if the server accepted binary framing, otherwise
+     * as the given text-protocol line.
+     */
+    private void sendCommand(byte type, String textLine, Object... fields) {
+        DataOutputStream frames = frameOut;
+        if (frames == null) {
+            out.println(textLine);
+            return;
+        }
+        try {
+            synchronized (frames) {
+                frames.write(FrameCodec.encode(type, fields));
+                frames.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to send to server: " + e.getMessage());
+        }
+    }
+
     private void receiveMessages() {
         try {
-            String message;
-            while ((message = in.readLine()) != null) {
-                final String finalMessage = message;
-                SwingUtilities.invokeLater(() -> {
-                    if (finalMessage.startsWith("Online users:")) {
-                        updateUserList(finalMessage);
-                    } else if (finalMessage.startsWith("USER_EVENT::")) {
-                        // Format: USER_EVENT::action::username  (action = joined|left)
-                        String[] parts = finalMessage.split("::", 3);
-                        if (parts.length == 3) {
-                            String action = parts[1];
-                            String who = parts[2];
-                            String text = who + ("joined".equalsIgnoreCase(action) ? " joined" : " left");
-                            showUserEvent(text);
-                        }
-                    } else if (finalMessage.startsWith("FILE_FROM::")) {
-                        // Format: FILE_FROM::sender::filename::base64
-                        String[] parts = finalMessage.split("::", 4);
-                        if (parts.length == 4) {
-                            String sender = parts[1];
-                            String filename = parts[2];
-                            String base64 = parts[3];
-                            addMessage(sender, "sent a file: " + filename, false);
-                            // Prompt to save
-                            int choice = JOptionPane.showConfirmDialog(this, sender + " sent a file: " + filename + "\nSave to disk?", "File received", JOptionPane.YES_NO_OPTION);
-                            if (choice == JOptionPane.YES_OPTION) {
-                                try {
-                                    byte[] data = Base64.getDecoder().decode(base64);
-                                    Path outPath = Paths.get(System.getProperty("user.home"), "Downloads", filename);
-                                    Files.createDirectories(outPath.getParent());
-                                    Files.write(outPath, data);
-                                    JOptionPane.showMessageDialog(this, "Saved to: " + outPath.toString());
-                                } catch (IOException ex) {
-                                    JOptionPane.showMessageDialog(this, "Failed to save file: " + ex.getMessage());
-                                }
-                            }
-                        }
-                    } else if (finalMessage.startsWith("PRIVATE::")) {
-                        // Handle private messages with special styling
-                        String content = finalMessage.substring("PRIVATE::".length());
-                        String timestamp = new SimpleDateFormat("HH:mm").format(new Date());
-                        String msg = content;
-                        String sender = "";
-                        String body = msg;
-                        int idx = msg.indexOf(": ");
-                        if (idx > 0) {
-                            sender = msg.substring(0, idx);
-                            body = msg.substring(idx + 2);
-                        }
-                        boolean isSelf = sender != null && !sender.isEmpty() && sender.equals(username);
-                        addPrivateMessage(sender, body, isSelf);
-                    } else {
-                        // Expect normal chat broadcasts in format: "username: message"
-                        String timestamp = new SimpleDateFormat("HH:mm").format(new Date());
-                        String msg = finalMessage;
-                        String sender = "";
-                        String body = msg;
-                        int idx = msg.indexOf(": ");
-                        if (idx > 0) {
-                            sender = msg.substring(0, idx);
-                            body = msg.substring(idx + 2);
-                        }
-
-                        boolean isSelf = sender != null && !sender.isEmpty() && sender.equals(username);
-                        // If there's no explicit sender (server/system message), show as left-side info bubble
-                        if (sender == null || sender.isEmpty()) {
-                            addMessage("", "[" + timestamp + "] " + body, false);
-                        } else {
-                            addMessage(sender, body, isSelf);
-                        }
+            if (frameIn != null) {
+                FrameCodec.Frame frame;
+                while ((frame = FrameCodec.read(frameIn)) != null) {
+                    if (frame.seq >= 0 && !received.add(frame.seq)) continue;
+                    if (frame.type == FrameCodec.SESSION) {
+                        sessionToken = frame.string(0);
+                        continue;
+                    }
+                    if (frame.type == FrameCodec.PING) {
+                        sendCommand(FrameCodec.PONG, "PONG::");
+                        continue;
+                    }
+                    if (frame.type == FrameCodec.LINE) {
+                        String line = frame.string(0);
+                        parser.parseServerLine(line, 0);
+                        if (!receiveSessionLine()) receiveServerLine(line, 0);
+                        continue;
+                    }
+                    if (receiveFileFrame(frame)) continue;
+                    final FrameCodec.Frame finalFrame = frame;
+                    deliver(() -> handleFrame(finalFrame));
+                }
+            } else {
+                String message;
+                while ((message = in.readLine()) != null) {
+                    int from = 0;
+                    if (parser.parseServerLine(message, 0) == CommandParser.SEQ) {
+                        // Format: SEQ::n::message
+                        long seq = parser.longField(0);
+                        if (parser.fieldCount() != 2 || seq < 0) throw new IOException("Malformed line: " + message);
+                        if (!received.add(seq)) continue;
+                        from = parser.start(1);
+                        parser.parseServerLine(message, from);
                     }
-                });
+                    if (receiveSessionLine() || receiveFileLine(message)) continue;
+                    receiveServerLine(message, from);
+                }
             }
+            deliver(() -> addMessage("", "Disconnected from server.", false));
+        } catch (IOException | NumberFormatException | StringIndexOutOfBoundsException e) {
+            deliver(() -> addMessage("", "Disconnected from server.", false));
+        } finally {
+            for (String id : new ArrayList<>(incomingFiles.keySet())) {
+                endIncomingFile(id, true);
+            }
+        }
+        reconnect();
+    }
+
+    /**
+     * Hands work from the receive thread to the EDT, in order. A burst of messages becomes a
+     * few EDT tasks rather than one per message.
+     */
+    private void deliver(Runnable task) {
+        inbox.add(task);
+        if (drainScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drainInbox);
+    }
+
+    // Applies queued messages until the inbox is empty or the budget is spent, then lays out
+    // and scrolls once for the whole batch
+    private void drainInbox() {
+        // cleared first, so work queued while a dialog opened by a task is up still gets drained
+        drainScheduled.set(false);
+        long deadline = System.nanoTime() + DRAIN_BUDGET_NANOS;
+        boolean nested = draining;
+        draining = true;
+        try {
+            updateView(() -> {
+                Runnable task;
+                while ((task = inbox.poll()) != null) {
+                    task.run();
+                    if (System.nanoTime() - deadline > 0) break;
+                }
+            });
+        } finally {
+            draining = nested;
+        }
+        if (!inbox.isEmpty() && drainScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drainInbox);
+    }
+
+    // Session bookkeeping for the line in parser, handled on the receive thread so a
+    // reconnect sees it immediately
+    private boolean receiveSessionLine() {
+        if (parser.type() == FrameCodec.PING) {
+            sendCommand(FrameCodec.PONG, "PONG::");
+            return true;
+        }
+        if (parser.type() == FrameCodec.CHAT && parser.fieldEquals(0, "Username already taken. Please try again.")) {
+            nameRefused = true;
+            return false; // still shown
+        }
+        if (parser.type() == FrameCodec.SESSION) {
+            sessionToken = parser.field(0);
+            return true;
+        }
+        if (parser.type() == CommandParser.RESUME_FAILED) {
+            // the old session is gone for good; log in afresh on this connection
+            sessionToken = null;
+            received.clear();
+            logIn();
+            deliver(() -> {
+                addMessage("", "Could not resume the previous session; some messages may be missing.", false);
+                rejoinRooms();
+            });
+            return true;
+        }
+        return false;
+    }
+
+    /** A streamed file being received. Chunks are appended to a temp file as they arrive. */
+    private static class IncomingFile {
+        final String sender;
+        final String filename;
+        final Path temp;
+        final OutputStream out;
+
+        IncomingFile(String sender, String filename) throws IOException {
+            this.sender = sender;
+            this.filename = filename;
+            this.temp = Files.createTempFile("chat-transfer-", ".part");
+            this.out = new BufferedOutputStream(Files.newOutputStream(temp));
+        }
+
+        void discard() {
+            try {
+                out.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                System.out.println("Failed to remove " + temp + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Handles file frames on the receive thread, writing chunks straight to disk and handing
+     * whole files to the transfer thread, so neither memory nor the EDT queue grows with the
+     * file size.
+     * @return false if the frame is something else
+     */
+    private boolean receiveFileFrame(FrameCodec.Frame frame) {
+        switch (frame.type) {
+            case FrameCodec.FILE_FROM: {
+                byte[] data = frame.bytes(2);
+                receiveFile(frame.string(0), frame.string(1), data.length, FileTransfers.bytes(data));
+                return true;
+            }
+            case FrameCodec.FILE_BEGIN:
+                beginIncomingFile(frame.string(0), frame.string(1), frame.string(3));
+                return true;
+            case FrameCodec.FILE_CHUNK:
+                incomingChunk(frame.string(0), frame.bytes(1));
+                return true;
+            case FrameCodec.FILE_END:
+                endIncomingFile(frame.string(0), "aborted".equals(frame.string(1)));
+                return true;
+            case FrameCodec.FILE_ACK:
+                fileAck(frame.string(0), frame.string(1));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Text-protocol file lines, as parsed into parser
+    private boolean receiveFileLine(String line) {
+        switch (parser.type()) {
+            case FrameCodec.FILE_FROM:
+                // Format: FILE_FROM::sender::filename::base64; the Base64 is decoded in place, not copied
+                if (parser.fieldCount() == 3) {
+                    long size = (parser.end(2) - parser.start(2)) / 4 * 3L;
+                    receiveFile(parser.field(0), parser.field(1), size, FileTransfers.base64(line, parser.start(2)));
+                }
+                return true;
+            case FrameCodec.FILE_BEGIN:
+                // Format: FILE_BEGIN::sender::id::size::filename
+                if (parser.fieldCount() == 4) beginIncomingFile(parser.field(0), parser.field(1), parser.field(3));
+                return true;
+            case FrameCodec.FILE_CHUNK:
+                // Format: FILE_CHUNK::id::base64
+                if (parser.fieldCount() == 2) {
+                    String id = parser.field(0);
+                    try {
+                        incomingChunk(id, parser.base64Field(1));
+                    } catch (IllegalArgumentException e) {
+                        endIncomingFile(id, true);
+                    }
+                }
+                return true;
+            case FrameCodec.FILE_END:
+                // Format: FILE_END::id[::aborted]
+                endIncomingFile(parser.field(0), parser.fieldCount() == 2 && parser.fieldEquals(1, "aborted"));
+                return true;
+            case FrameCodec.FILE_ACK:
+                // Format: FILE_ACK::id::result
+                if (parser.fieldCount() == 2) fileAck(parser.field(0), parser.field(1));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void receiveFile(String sender, String filename, long size, FileTransfers.Source source) {
+        deliver(() -> addMessage(sender, "sent a file: " + filename, false));
+        transfers.receive(sender, filename, size, source);
+    }
+
+    private void beginIncomingFile(String sender, String id, String filename) {
+        try {
+            incomingFiles.put(id, new IncomingFile(sender, filename));
+        } catch (IOException e) {
+            System.out.println("Cannot receive " + filename + ": " + e.getMessage());
+        }
+    }
+
+    private void incomingChunk(String id, byte[] data) {
+        IncomingFile file = incomingFiles.get(id);
+        if (file == null) return;
+        try {
+            file.out.write(data);
         } catch (IOException e) {
-            SwingUtilities.invokeLater(() -> addMessage("", "Disconnected from server.", false));
+            System.out.println("Cannot receive " + file.filename + ": " + e.getMessage());
+            incomingFiles.remove(id);
+            file.discard();
+        }
+    }
+
+    private void endIncomingFile(String id, boolean aborted) {
+        IncomingFile file = incomingFiles.remove(id);
+        if (file == null) return;
+        if (aborted) {
+            file.discard();
+            deliver(() -> addMessage("", file.sender + " stopped sending " + file.filename + ".", false));
+            return;
+        }
+        try {
+            file.out.close();
+        } catch (IOException e) {
+            System.out.println("Cannot receive " + file.filename + ": " + e.getMessage());
+            file.discard();
+            return;
+        }
+        deliver(() -> addMessage(file.sender, "sent a file: " + file.filename, false));
+        transfers.receive(file.sender, file.filename, file.temp);
+    }
+
+    // Binary protocol counterpart of receiveServerLine; fields as documented in FrameCodec
+    private void handleFrame(FrameCodec.Frame frame) {
+        switch (frame.type) {
+            case FrameCodec.CHAT:
+                showChat(frame.string(0), frame.string(1));
+                break;
+            case FrameCodec.PRIVATE: {
+                String sender = frame.string(0);
+                addPrivateMessage(sender, frame.string(1), sender.equals(username));
+                break;
+            }
+            case FrameCodec.FILE_REF:
+                showFileRef(frame.string(0), frame.string(1), frame.string(2), frame.string(3));
+                break;
+            case FrameCodec.USER_EVENT:
+                showUserEvent(frame.string(1) + ("joined".equalsIgnoreCase(frame.string(0)) ? " joined" : " left"));
+                break;
+            case FrameCodec.ROOM_CHAT:
+                showRoomChat(frame.string(0), frame.string(1), frame.string(2));
+                break;
+            case FrameCodec.ROOM_EVENT:
+                showUserEvent(frame.string(2) + ("joined".equals(frame.string(0)) ? " joined #" : " left #") + frame.string(1));
+                break;
+            case FrameCodec.PRESENCE: {
+                String[] parts = new String[frame.fieldCount()];
+                for (int i = 0; i < parts.length; i++) parts[i] = frame.string(i);
+                applyPresence(parts);
+                break;
+            }
+            default:
+                System.out.println("Ignoring frame type " + frame.type);
+        }
+    }
+
+    /**
+     * Any other line from the server, as parsed into parser (from from on, after a SEQ
+     * prefix): its fields are split out here and it is shown on the EDT.
+     */
+    private void receiveServerLine(String line, int from) {
+        switch (parser.type()) {
+            case CommandParser.ONLINE_USERS: {
+                String roster = line.substring(from);
+                deliver(() -> updateUserList(roster));
+                break;
+            }
+            case FrameCodec.PRESENCE: {
+                String[] parts = new String[parser.fieldCount()];
+                for (int i = 0; i < parts.length; i++) parts[i] = parser.field(i);
+                deliver(() -> applyPresence(parts));
+                break;
+            }
+            case FrameCodec.USER_EVENT:
+                // Format: USER_EVENT::action::username  (action = joined|left)
+                if (parser.fieldCount() == 2) {
+                    String text = parser.field(1) + ("joined".equalsIgnoreCase(parser.field(0)) ? " joined" : " left");
+                    deliver(() -> showUserEvent(text));
+                }
+                break;
+            case FrameCodec.ROOM_CHAT: {
+                // Format: ROOM::room::sender: message
+                String message = parser.fieldCount() == 2 ? parser.field(1) : "";
+                int idx = message.indexOf(": ");
+                if (idx > 0) {
+                    String room = parser.field(0);
+                    deliver(() -> showRoomChat(room, message.substring(0, idx), message.substring(idx + 2)));
+                }
+                break;
+            }
+            case FrameCodec.ROOM_EVENT:
+                // Format: ROOM_EVENT::action::room::username
+                if (parser.fieldCount() == 3) {
+                    String text = parser.field(2) + (parser.fieldEquals(0, "joined") ? " joined #" : " left #") + parser.field(1);
+                    deliver(() -> showUserEvent(text));
+                }
+                break;
+            case FrameCodec.FILE_REF:
+                // Format: FILE_REF::sender::sha256::size::filename
+                if (parser.fieldCount() == 4) {
+                    String sender = parser.field(0);
+                    String hash = parser.field(1);
+                    String size = parser.field(2);
+                    String filename = parser.field(3);
+                    deliver(() -> showFileRef(sender, hash, size, filename));
+                }
+                break;
+            case FrameCodec.PRIVATE: {
+                // Format: PRIVATE::sender: message
+                String[] message = senderAndText(parser.field(0));
+                deliver(() -> addPrivateMessage(message[0], message[1], !message[0].isEmpty() && message[0].equals(username)));
+                break;
+            }
+            default: {
+                // Expect normal chat broadcasts in format: "username: message"
+                String[] message = senderAndText(line.substring(from));
+                deliver(() -> showChat(message[0], message[1]));
+            }
+        }
+    }
+
+    // "sender: text" as {sender, text}; {"", line} without a sender
+    private static String[] senderAndText(String line) {
+        int idx = line.indexOf(": ");
+        return idx > 0 ? new String[]{line.substring(0, idx), line.substring(idx + 2)} : new String[]{"", line};
+    }
+
+    private void showChat(String sender, String body) {
+        String timestamp = new SimpleDateFormat("HH:mm").format(new Date());
+        boolean isSelf = sender != null && !sender.isEmpty() && sender.equals(username);
+        // If there's no explicit sender (server/system message), show as left-side info bubble
+        if (sender == null || sender.isEmpty()) {
+            addMessage("", "[" + timestamp + "] " + body, false);
+        } else {
+            addMessage(sender, body, isSelf);
+        }
+    }
+
+    // Room messages go to that room's history; a room that is not on screen gets a notice
+    private void showRoomChat(String room, String sender, String body) {
+        MessageHistory history = roomHistories.get(room);
+        if (history == null) return; // left meanwhile
+        MessageHistory shown = messages;
+        messages = history;
+        try {
+            showChat(sender, body);
+        } finally {
+            messages = shown;
+        }
+        if (history != shown) showUserEvent("New message in #" + room);
+    }
+
+    private String roomTarget() {
+        return Protocol.DEFAULT_ROOM.equals(currentRoom) ? "All" : "#" + currentRoom;
+    }
+
+    private void joinRoom(String requested) {
+        String room = Protocol.roomName(requested);
+        if (room == null) {
+            JOptionPane.showMessageDialog(this, "Room names are letters, digits, '-' or '_' (at most 32).");
+            return;
+        }
+        if (!roomHistories.containsKey(room)) {
+            roomHistories.put(room, new MessageHistory(HISTORY_WINDOW, HISTORY_PAGE));
+            roomCombo.addItem(room);
+            sendCommand(FrameCodec.JOIN, "JOIN::" + room, room);
+        }
+        roomCombo.setSelectedItem(room);
+    }
+
+    private void leaveRoom() {
+        String room = currentRoom;
+        if (Protocol.DEFAULT_ROOM.equals(room)) return;
+        sendCommand(FrameCodec.LEAVE, "LEAVE::" + room, room);
+        roomCombo.setSelectedItem(Protocol.DEFAULT_ROOM);
+        roomHistories.remove(room).close();
+        roomCombo.removeItem(room);
+    }
+
+    private void switchRoom(String room) {
+        MessageHistory history = room != null ? roomHistories.get(room) : null;
+        if (history == null || history == messages) return;
+        messages = history;
+        currentRoom = room;
+        messageList.setModel(history);
+        scrollToBottom();
+        chatScroll.setBorder(BorderFactory.createTitledBorder(Protocol.DEFAULT_ROOM.equals(room) ? "Chat" : "Chat #" + room));
+        leaveRoomButton.setEnabled(!Protocol.DEFAULT_ROOM.equals(room));
+        userList.clearSelection();
+        chatTargetLabel.setText("Chatting with: " + roomTarget());
+    }
+
+    // After a fresh login the server has forgotten our rooms; each one is refilled from its history
+    private void rejoinRooms() {
+        for (Map.Entry<String, MessageHistory> room : roomHistories.entrySet()) {
+            if (Protocol.DEFAULT_ROOM.equals(room.getKey())) continue;
+            room.getValue().clear();
+            sendCommand(FrameCodec.JOIN, "JOIN::" + room.getKey(), room.getKey());
+        }
+    }
+
+    // Stored files are only downloaded if the user saves them
+    private void showFileRef(String sender, String hash, String size, String filename) {
+        addMessage(sender, "sent a file: " + filename, false);
+        long bytes;
+        try {
+            bytes = Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            bytes = -1;
+        }
+        transfers.offer(sender, filename, bytes, (target, progress) -> fetchBlob(hash, target, progress));
+    }
+
+    /** Downloads a blob from the server's blob port, checking it against its digest. */
+    private void fetchBlob(String hash, Path target, java.util.function.LongConsumer progress) throws IOException {
+        try (Socket blobSocket = new Socket()) {
+            blobSocket.connect(new InetSocketAddress(serverHost, blobPort), 5000);
+            blobSocket.getOutputStream().write(("GET " + hash + "\n").getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+            InputStream input = new BufferedInputStream(blobSocket.getInputStream());
+            StringBuilder header = new StringBuilder();
+            int c;
+            while ((c = input.read()) >= 0 && c != '\n') {
+                header.append((char) c);
+            }
+            if (!header.toString().startsWith("OK ")) {
+                throw new IOException("File is no longer available on the server");
+            }
+            long size = Long.parseLong(header.substring(3).trim());
+            MessageDigest digest = Protocol.sha256();
+            try (DigestInputStream body = new DigestInputStream(input, digest);
+                 OutputStream file = Files.newOutputStream(target)) {
+                byte[] buffer = new byte[FrameCodec.FILE_CHUNK_SIZE];
+                long remaining = size;
+                while (remaining > 0) {
+                    int n = body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n < 0) throw new EOFException("Download ended early");
+                    file.write(buffer, 0, n);
+                    remaining -= n;
+                    progress.accept(size - remaining);
+                }
+            }
+            if (!Protocol.hex(digest.digest()).equals(hash)) {
+                Files.deleteIfExists(target);
+                throw new IOException("Downloaded file does not match its checksum");
+            }
         }
     }
 
     private void showUserEvent(String text) {
         if (userEventLabel == null) return;
         userEventLabel.setText(text);
-        // clear after 5 seconds
-        Timer t = new Timer(5000, e -> userEventLabel.setText(""));
-        t.setRepeats(false);
-        t.start();
+        // clear 5 seconds after the last event
+        if (userEventTimer == null) {
+            userEventTimer = new Timer(5000, e -> userEventLabel.setText(""));
+            userEventTimer.setRepeats(false);
+        }
+        userEventTimer.restart();
     }
 
     private void sendFile(File file) {
+        if (blobPort > 0) {
+            offerFile(file);
+            return;
+        }
+        if (fileChunks) {
+            streamFile(file);
+            return;
+        }
         try {
             byte[] bytes = Files.readAllBytes(file.toPath());
-            String base64 = Base64.getEncoder().encodeToString(bytes);
-            // Send in format: FILE::filename::base64
-            out.println("FILE::" + file.getName() + "::" + base64);
+            if (frameOut != null) {
+                // binary frames carry the raw bytes, no Base64
+                sendCommand(FrameCodec.FILE, null, file.getName(), bytes);
+            } else {
+                String base64 = Base64.getEncoder().encodeToString(bytes);
+                // Send in format: FILE::filename::base64
+                out.println("FILE::" + file.getName() + "::" + base64);
+            }
             SwingUtilities.invokeLater(() -> addMessage(username, "Sent file: " + file.getName(), true));
         } catch (IOException e) {
             SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, "Failed to send file: " + e.getMessage()));
         }
     }
 
+    /**
+     * Sends a file as FILE_BEGIN, a run of FILE_CHUNK pieces read one at a time, and
+     * FILE_END, so memory use does not depend on the file size and chat keeps flowing
+     * between chunks.
+     */
+    private void streamFile(File file) {
+        String id = String.valueOf(transferIds.incrementAndGet());
+        String name = file.getName();
+        String size = String.valueOf(file.length());
+        sendCommand(FrameCodec.FILE_BEGIN, "FILE_BEGIN::" + id + "::" + size + "::" + name, id, size, name);
+        if (sendChunks(id, file)) {
+            SwingUtilities.invokeLater(() -> addMessage(username, "Sent file: " + name, true));
+        }
+    }
+
+    /**
+     * Offers a file to the server's blob store by its SHA-256 (read in one streaming pass).
+     * The server answers with FILE_ACK: stored if it already has the content, so nothing is
+     * uploaded, or upload, after which fileAck streams it with sendChunks.
+     */
+    private void offerFile(File file) {
+        String hash;
+        try (InputStream input = new DigestInputStream(Files.newInputStream(file.toPath()), Protocol.sha256())) {
+            byte[] buffer = new byte[FrameCodec.FILE_CHUNK_SIZE];
+            while (input.read(buffer) >= 0) {
+                // digest only
+            }
+            hash = Protocol.hex(((DigestInputStream) input).getMessageDigest().digest());
+        } catch (IOException e) {
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, "Failed to send file: " + e.getMessage()));
+            return;
+        }
+        String id = String.valueOf(transferIds.incrementAndGet());
+        String name = file.getName();
+        String size = String.valueOf(file.length());
+        pendingOffers.put(id, file);
+        sendCommand(FrameCodec.FILE_OFFER, "FILE_OFFER::" + id + "::" + size + "::" + hash + "::" + name, id, size, hash, name);
+    }
+
+    // The server's answer to a FILE_OFFER, or to the upload that followed it
+    private void fileAck(String id, String result) {
+        if ("upload".equals(result)) {
+            File file = pendingOffers.get(id);
+            if (file != null) new Thread(() -> sendChunks(id, file)).start();
+            return;
+        }
+        File file = pendingOffers.remove(id);
+        if (file == null) return;
+        if ("stored".equals(result)) {
+            SwingUtilities.invokeLater(() -> addMessage(username, "Sent file: " + file.getName(), true));
+        } else {
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, "The server did not accept " + file.getName() + "."));
+        }
+    }
+
+    /**
+     * Sends a file as FILE_CHUNK pieces read one at a time, then FILE_END.
+     * @return true if the whole file was sent
+     */
+    private boolean sendChunks(String id, File file) {
+        boolean complete = false;
+        try (InputStream input = Files.newInputStream(file.toPath())) {
+            byte[] chunk = new byte[FrameCodec.FILE_CHUNK_SIZE];
+            int n;
+            while ((n = input.readNBytes(chunk, 0, chunk.length)) > 0) {
+                byte[] piece = n == chunk.length ? chunk : Arrays.copyOf(chunk, n);
+                if (frameOut != null) {
+                    sendCommand(FrameCodec.FILE_CHUNK, null, id, piece);
+                } else {
+                    out.println("FILE_CHUNK::" + id + "::" + Base64.getEncoder().encodeToString(piece));
+                }
+            }
+            complete = true;
+        } catch (IOException e) {
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, "Failed to send file: " + e.getMessage()));
+        } finally {
+            if (complete) {
+                sendCommand(FrameCodec.FILE_END, "FILE_END::" + id, id);
+            } else {
+                sendCommand(FrameCodec.FILE_END, "FILE_END::" + id + "::aborted", id, "aborted");
+            }
+        }
+        return complete;
+    }
+
     private void updateUserList(String message) {
         userListModel.clear();
+        userDisplays.clear();
         String[] users = message.replace("Online users: ", "").split(", ");
         for (String user : users) {
             if (!user.trim().isEmpty()) {
-                // expected format: username|status
-                String token = user.trim();
-                String display = token;
-                if (token.contains("|")) {
-                    String[] parts = token.split("\\|", 2);
-                    String uname = parts[0];
-                    String st = parts.length > 1 ? parts[1] : "Online";
-                    display = uname + " (" + st + ")";
-                }
-                userListModel.addElement(display);
+                putUser(user.trim());
             }
         }
     }
 
-    // UI: create a chat bubble panel
-    private JPanel createBubble(String sender, String text, boolean isSelf, Font font) {
-        JPanel wrapper = new JPanel(new BorderLayout());
-        wrapper.setOpaque(false);
+    /**
+     * Applies an incremental presence frame, PRESENCE::op::arg[::op::arg...] (given here as
+     * its op/arg parts), where op is snapshot (a full "username|status, ..." list), add or
+     * status ("username|status"), or remove ("username"). Rows are updated in place, so the
+     * DM selection survives.
+     */
+    private void applyPresence(String[] parts) {
+        for (int i = 0; i + 1 < parts.length; i += 2) {
+            String op = parts[i];
+            String arg = parts[i + 1];
+            if ("snapshot".equals(op)) {
+                updateUserList(arg);
+            } else if ("remove".equals(op)) {
+                String old = userDisplays.remove(arg);
+                if (old != null) userListModel.removeElement(old);
+            } else if ("add".equals(op) || "status".equals(op)) {
+                putUser(arg);
+            }
+        }
+    }
 
-        JPanel bubble = new JPanel();
-        bubble.setLayout(new BoxLayout(bubble, BoxLayout.Y_AXIS));
-        
-        // WhatsApp-inspired gradient colors
-        Color startColor = isSelf ? new Color(0, 184, 148) : new Color(255, 255, 255);
-        Color endColor = isSelf ? new Color(0, 168, 132) : new Color(240, 242, 245);
-        Color borderColor = isSelf ? new Color(0, 150, 120) : new Color(220, 222, 225);
-        
-        bubble.setBorder(BorderFactory.createCompoundBorder(
-            BorderFactory.createEmptyBorder(2, 2, 2, 2),
-            BorderFactory.createCompoundBorder(
-                new BubbleBorder(borderColor, 1, 15),
-                BorderFactory.createEmptyBorder(8, 12, 8, 12)
-            )
-        ));
-        
-        // Use modern messenger gradient background
-        bubble.setBackground(startColor);
-
-        JLabel nameLabel = new JLabel(sender == null || sender.isEmpty() ? "" : sender);
-        nameLabel.setFont(font.deriveFont(Font.BOLD, 13f));
-        nameLabel.setForeground(isSelf ? Color.WHITE : new Color(33, 33, 33));
-
-    // Use an HTML JLabel for the message body so wrapping and preferred size are calculated reliably
-    String escaped = escapeHtml(text);
-    // approxWidth will be computed below and inserted into the HTML to control wrapping
-    JLabel msgLabel = new JLabel();
-    msgLabel.setFont(font);
-    msgLabel.setOpaque(false);
-    msgLabel.setForeground(isSelf ? Color.WHITE : Color.BLACK);
-
-    if (!nameLabel.getText().isEmpty()) bubble.add(nameLabel);
-    bubble.add(msgLabel);
-
-        // Adaptive sizing: choose max width based on scroll viewport width
-        int maxWidth = 400; // larger fallback for better text display
-        if (chatScroll != null) {
-            JViewport vp = chatScroll.getViewport();
-            Dimension viewSize = vp.getExtentSize();
-            if (viewSize != null && viewSize.width > 0) {
-                // allow bubble up to ~75% of viewport width for better text display
-                maxWidth = Math.max(200, (int)(viewSize.width * 0.75));
-            }
-        }
-
-        // For long messages, always use maxWidth to ensure proper wrapping
-        FontMetrics fm = msgLabel.getFontMetrics(msgLabel.getFont());
-        int approxCharWidth = fm.charWidth('a') > 0 ? fm.charWidth('a') : 7;
-        int textWidth = text.length() * approxCharWidth;
-        // If text is longer than maxWidth, use maxWidth for proper wrapping
-        int approxWidth = textWidth > maxWidth ? maxWidth : Math.max(80, Math.min(maxWidth, textWidth + 20));
-        String html = "<html><div style='width: " + approxWidth + "px; word-wrap: break-word;'>" + escaped + "</div></html>";
-        msgLabel.setText(html);
-        msgLabel.setMaximumSize(new Dimension(approxWidth, Integer.MAX_VALUE));
-
-        // align bubble left or right
-        if (isSelf) {
-            wrapper.add(bubble, BorderLayout.EAST);
+    // Adds or updates one user row; expected format: username|status
+    private void putUser(String token) {
+        String uname = token;
+        String display = token;
+        if (token.contains("|")) {
+            String[] parts = token.split("\\|", 2);
+            uname = parts[0];
+            String st = parts.length > 1 ? parts[1] : "Online";
+            display = uname + " (" + st + ")";
+        }
+        String old = userDisplays.put(uname, display);
+        int index = old == null ? -1 : userListModel.indexOf(old);
+        if (index >= 0) {
+            userListModel.set(index, display);
         } else {
-            wrapper.add(bubble, BorderLayout.WEST);
+            userListModel.addElement(display);
         }
-
-        return wrapper;
     }
 
     private void addPrivateMessage(String sender, String text, boolean isSelf) {
-        Font font = messageField.getFont();
-        // Create private message bubble with Messenger/Telegram-inspired colors
-        JPanel bubble = new JPanel();
-        bubble.setLayout(new BoxLayout(bubble, BoxLayout.Y_AXIS));
-        
-        // Modern private message styling
-        Color bgStart = isSelf ? new Color(0, 132, 255) : new Color(244, 241, 255);
-        Color bgEnd = isSelf ? new Color(0, 120, 232) : new Color(236, 233, 250);
-        Color borderColor = isSelf ? new Color(0, 108, 210) : new Color(220, 215, 245);
-        
-        bubble.setBorder(BorderFactory.createCompoundBorder(
-            BorderFactory.createEmptyBorder(2, 2, 2, 2),
-            BorderFactory.createCompoundBorder(
-                new BubbleBorder(borderColor, 1, 15),
-                BorderFactory.createEmptyBorder(8, 12, 8, 12)
-            )
-        ));
-        bubble.setBackground(bgStart);
-        
-        // Add a small lock icon to indicate private message
-        JLabel nameLabel = new JLabel(sender + " 🔒");
-        nameLabel.setFont(font.deriveFont(Font.BOLD, 13f));
-        nameLabel.setForeground(isSelf ? Color.WHITE : new Color(88, 86, 214));
-        
-        // Use HTML JLabel for message text
-        String escaped = escapeHtml(text);
-        JLabel msgLabel = new JLabel();
-        msgLabel.setFont(font);
-        msgLabel.setOpaque(false);
-        msgLabel.setForeground(Color.BLACK);
-        
-        // Adaptive sizing based on viewport width
-        int maxWidth = 300;
-        if (chatScroll != null) {
-            JViewport vp = chatScroll.getViewport();
-            Dimension viewSize = vp.getExtentSize();
-            if (viewSize != null && viewSize.width > 0) {
-                maxWidth = Math.max(120, (int)(viewSize.width * 0.6));
-            }
+        addEntry(new MessageHistory.Entry(sender, text, isSelf, true));
+    }
+
+    private void addMessage(String sender, String text, boolean isSelf) {
+        addEntry(new MessageHistory.Entry(sender, text, isSelf, false));
+    }
+
+    private void addEntry(MessageHistory.Entry entry) {
+        if (entry.self && messages == messageList.getModel()) showNewest = true;
+        if (draining) {
+            messages.add(entry);
+        } else {
+            updateView(() -> messages.add(entry));
         }
-        
-        FontMetrics fm = msgLabel.getFontMetrics(msgLabel.getFont());
-        int approxCharWidth = fm.charWidth('a') > 0 ? fm.charWidth('a') : 7;
-        int textWidth = text.length() * approxCharWidth;
-        // If text is longer than maxWidth, use maxWidth for proper wrapping
-        int approxWidth = textWidth > maxWidth ? maxWidth : Math.max(80, Math.min(maxWidth, textWidth + 20));
-        String html = "<html><div style='width: " + approxWidth + "px; word-wrap: break-word;'>" + escaped + "</div></html>";
-        msgLabel.setText(html);
-        msgLabel.setMaximumSize(new Dimension(approxWidth, Integer.MAX_VALUE));
-        
-        bubble.add(nameLabel);
-        bubble.add(msgLabel);
-        
-        if (messagePanel != null && chatScroll != null) {
-            JPanel holder = new JPanel(new BorderLayout());
-            holder.setOpaque(false);
-            if (isSelf) {
-                holder.add(bubble, BorderLayout.EAST);
-            } else {
-                holder.add(bubble, BorderLayout.WEST);
-            }
-            messagePanel.add(holder);
-            messagePanel.add(Box.createVerticalStrut(6));
-            messagePanel.revalidate();
-            
-            // Enhanced auto-scroll mechanism
-            SwingUtilities.invokeLater(() -> {
-                // First scroll attempt
-                JScrollBar v = chatScroll.getVerticalScrollBar();
-                v.setValue(v.getMaximum());
-                
-                // Second scroll attempt after a short delay to ensure layout is complete
-                Timer timer = new Timer(50, e -> {
-                    v.setValue(v.getMaximum());
-                    ((Timer)e.getSource()).stop();
-                    
-                    // Final scroll attempt to handle any dynamic content
-                    Timer finalTimer = new Timer(100, e2 -> {
-                        v.setValue(v.getMaximum());
-                        ((Timer)e2.getSource()).stop();
-                    });
-                    finalTimer.setRepeats(false);
-                    finalTimer.start();
-                });
-                timer.setRepeats(false);
-                timer.start();
-            });
-            return;
+    }
+
+    /**
+     * Applies a change to the histories, then brings the view up to date once: it follows
+     * the newest message if it was at the bottom before (or the user sent one), and otherwise
+     * keeps the rows on screen where they were, even if older rows were evicted above them.
+     */
+    private void updateView(Runnable change) {
+        ListModel<MessageHistory.Entry> shown = messageList.getModel();
+        JScrollBar v = chatScroll.getVerticalScrollBar();
+        boolean atBottom = v.getValue() + v.getVisibleAmount() >= v.getMaximum() - BOTTOM_SLACK;
+        int top = messageList.getFirstVisibleIndex();
+        Rectangle topBounds = top >= 0 ? messageList.getCellBounds(top, top) : null;
+        int firstBefore = ((MessageHistory) shown).firstPosition();
+        showNewest = false;
+        change.run();
+        if (messageList.getModel() != shown) return; // switched rooms meanwhile; already scrolled
+        if (atBottom || showNewest) {
+            scrollToBottom();
+        } else if (topBounds != null && ((MessageHistory) shown).firstPosition() != firstBefore) {
+            int index = top - (((MessageHistory) shown).firstPosition() - firstBefore);
+            if (index < 0) return; // the rows on screen were evicted too
+            chatScroll.validate();
+            Rectangle bounds = messageList.getCellBounds(index, index);
+            if (bounds != null) v.setValue(v.getValue() + bounds.y - topBounds.y);
         }
     }
 
-    private void addMessage(String sender, String text, boolean isSelf) {
-        Font font = messageField.getFont();
-        JPanel bubble = createBubble(sender, text, isSelf, font);
-
-        if (messagePanel != null && chatScroll != null) {
-            // Put the bubble inside a holder panel to left/right align consistently
-            JPanel holder = new JPanel(new BorderLayout());
-            holder.setOpaque(false);
-            if (isSelf) {
-                holder.add(bubble, BorderLayout.EAST);
-            } else {
-                holder.add(bubble, BorderLayout.WEST);
+    private void scrollToBottom() {
+        // lay the list out now so the last row's bounds are known
+        chatScroll.validate();
+        int last = messageList.getModel().getSize() - 1;
+        if (last >= 0) messageList.ensureIndexIsVisible(last);
+    }
+
+    // Called at the top of the list: the rows that were on screen stay where they were
+    private void loadOlderMessages() {
+        JScrollBar v = chatScroll.getVerticalScrollBar();
+        if (v.getValue() != v.getMinimum()) return;
+        int loaded = messages.loadOlder();
+        if (loaded == 0) return;
+        chatScroll.validate();
+        Rectangle added = messageList.getCellBounds(0, loaded - 1);
+        if (added != null) v.setValue(added.height);
+    }
+
+    /**
+     * Draws one message as a chat bubble: own messages on the right, DMs with a lock and
+     * their own colours. One component is reused for every row. A row's size is measured
+     * once per view width and kept on its entry, so adding a message does not re-measure
+     * the whole history.
+     */
+    private class BubbleRenderer extends JPanel implements ListCellRenderer<MessageHistory.Entry> {
+        private final JPanel bubble = new JPanel();
+        private final JLabel nameLabel = new JLabel();
+        private final JLabel msgLabel = new JLabel();
+        // by (private ? 2 : 0) + (own ? 1 : 0)
+        private final Border[] borders = {border(new Color(220, 222, 225)), border(new Color(0, 150, 120)),
+                border(new Color(220, 215, 245)), border(new Color(0, 108, 210))};
+        private final Color[] backgrounds = {Color.WHITE, new Color(0, 184, 148),
+                new Color(244, 241, 255), new Color(0, 132, 255)};
+        private MessageHistory.Entry entry;
+        private int width;
+        // What the labels currently show
+        private MessageHistory.Entry configured;
+        private int configuredWidth;
+
+        BubbleRenderer() {
+            super(new BorderLayout());
+            setOpaque(false);
+            // the gap between messages
+            setBorder(BorderFactory.createEmptyBorder(0, 0, 6, 0));
+            bubble.setLayout(new BoxLayout(bubble, BoxLayout.Y_AXIS));
+            msgLabel.setOpaque(false);
+            bubble.add(nameLabel);
+            bubble.add(msgLabel);
+        }
+
+        private Border border(Color color) {
+            return BorderFactory.createCompoundBorder(
+                BorderFactory.createEmptyBorder(2, 2, 2, 2),
+                BorderFactory.createCompoundBorder(
+                    new BubbleBorder(color, 1, 15),
+                    BorderFactory.createEmptyBorder(8, 12, 8, 12)));
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends MessageHistory.Entry> list, MessageHistory.Entry value,
+                                                      int index, boolean isSelected, boolean cellHasFocus) {
+            entry = value;
+            width = chatScroll.getViewport().getExtentSize().width;
+            return this;
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            if (entry == null) return super.getPreferredSize();
+            if (entry.measuredWidth != width) {
+                configure();
+                entry.measured = super.getPreferredSize();
+                entry.measuredWidth = width;
             }
-            messagePanel.add(holder);
-            messagePanel.add(Box.createVerticalStrut(6));
-            messagePanel.revalidate();
-            
-            // Enhanced auto-scroll mechanism
-            SwingUtilities.invokeLater(() -> {
-                // First scroll attempt
-                JScrollBar v = chatScroll.getVerticalScrollBar();
-                v.setValue(v.getMaximum());
-                
-                // Second scroll attempt after a short delay to ensure layout is complete
-                Timer timer = new Timer(50, e -> {
-                    v.setValue(v.getMaximum());
-                    ((Timer)e.getSource()).stop();
-                    
-                    // Final scroll attempt to handle any dynamic content
-                    Timer finalTimer = new Timer(100, e2 -> {
-                        v.setValue(v.getMaximum());
-                        ((Timer)e2.getSource()).stop();
-                    });
-                    finalTimer.setRepeats(false);
-                    finalTimer.start();
-                });
-                timer.setRepeats(false);
-                timer.start();
-            });
-            return;
+            return new Dimension(entry.measured);
+        }
+
+        // The list validates the renderer right before painting a row
+        @Override
+        public void validate() {
+            if (entry != null) configure();
+            super.validate();
         }
 
-        // Fallback: try to find the scroll pane (legacy behavior)
-        JScrollPane sp = null;
-        for (Component c : getContentPane().getComponents()) {
-            if (c instanceof JScrollPane) { sp = (JScrollPane) c; break; }
+        private void configure() {
+            if (configured == entry && configuredWidth == width) return;
+            configured = entry;
+            configuredWidth = width;
+            boolean dm = entry.privateMessage;
+            boolean isSelf = entry.self;
+            Font font = messageField.getFont();
+            remove(bubble);
+            add(bubble, isSelf ? BorderLayout.EAST : BorderLayout.WEST);
+            int style = (dm ? 2 : 0) + (isSelf ? 1 : 0);
+            bubble.setBorder(borders[style]);
+            bubble.setBackground(backgrounds[style]);
+
+            nameLabel.setText(dm ? entry.sender + " 🔒" : entry.sender);
+            nameLabel.setVisible(!nameLabel.getText().isEmpty());
+            nameLabel.setFont(font.deriveFont(Font.BOLD, 13f));
+            nameLabel.setForeground(isSelf ? Color.WHITE : dm ? new Color(88, 86, 214) : new Color(33, 33, 33));
+            msgLabel.setFont(font);
+            msgLabel.setForeground(isSelf && !dm ? Color.WHITE : Color.BLACK);
+
+            // Adaptive sizing: up to ~75% of the viewport for chat, ~60% for DMs
+            int maxWidth;
+            if (width > 0) {
+                maxWidth = dm ? Math.max(120, (int) (width * 0.6)) : Math.max(200, (int) (width * 0.75));
+            } else {
+                maxWidth = dm ? 300 : 400;
+            }
+            // For long messages, always use maxWidth to ensure proper wrapping
+            FontMetrics fm = msgLabel.getFontMetrics(font);
+            int approxCharWidth = fm.charWidth('a') > 0 ? fm.charWidth('a') : 7;
+            int textWidth = entry.text.length() * approxCharWidth;
+            int approxWidth = textWidth > maxWidth ? maxWidth : Math.max(80, Math.min(maxWidth, textWidth + 20));
+            String html = "<html><div style='width: " + approxWidth + "px; word-wrap: break-word;'>" + escapeHtml(entry.text) + "</div></html>";
+            msgLabel.setText(html);
+            msgLabel.setMaximumSize(new Dimension(approxWidth, Integer.MAX_VALUE));
         }
-        if (sp == null) return;
-        JViewport vp = sp.getViewport();
-        Component view = vp.getView();
-        if (!(view instanceof JPanel)) return;
-        JPanel mp = (JPanel) view;
-        mp.add(bubble);
-        mp.add(Box.createVerticalStrut(6));
-        mp.revalidate();
-        JScrollBar v = sp.getVerticalScrollBar();
-        v.setValue(v.getMaximum());
     }
 
     private void insertEmoji(String emoji) {
@@ -883,33 +1572,13 @@ public class ChatClient extends JFrame {
         }
 
         getContentPane().setBackground(bg);
-        // Chat area / message panel
+        // Chat area / message list (bubbles keep their own colours)
         if (chatArea != null) {
             chatArea.setBackground(panelBg);
             chatArea.setForeground(fg);
             chatArea.setCaretColor(fg);
-        } else {
-            // find message panel inside scroll pane
-            for (Component c : getContentPane().getComponents()) {
-                if (c instanceof JScrollPane) {
-                    JViewport vp = ((JScrollPane) c).getViewport();
-                    Component view = vp.getView();
-                    if (view instanceof JPanel) {
-                        view.setBackground(panelBg);
-                        // update child bubbles foreground where applicable
-                        for (Component child : ((JPanel) view).getComponents()) {
-                            // best-effort: update labels and text areas
-                            if (child instanceof JPanel) {
-                                for (Component inner : ((JPanel) child).getComponents()) {
-                                    if (inner instanceof JLabel) inner.setForeground(fg);
-                                    if (inner instanceof JTextArea) inner.setForeground(fg);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
         }
+        messageList.setBackground(panelBg);
 
         // Message field
         messageField.setBackground(inputBg);
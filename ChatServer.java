@@ -1,37 +1,340 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ChatServer {
     private static final int PORT = 1234;
-    private static final List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
-    private static final Set<String> usernames = Collections.synchronizedSet(new HashSet<>());
-    private static final Map<String, String> statuses = Collections.synchronizedMap(new HashMap<>());
+    // Logged-in sessions by username. Joins (putIfAbsent), leaves (remove(key, value)) and DM
+    // lookups are atomic and O(1); broadcasts iterate it without locking, so nothing ever
+    // holds a monitor while writing (which would also pin a virtual thread to its carrier).
+    static final ConcurrentHashMap<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    static final Map<String, String> statuses = new ConcurrentHashMap<>();
+    // Orders presence output (snapshots and deltas) so a delta is never queued ahead of the
+    // snapshot it follows. Only enqueues happen under it, never socket writes.
+    static final ReentrantLock presenceLock = new ReentrantLock();
+    static long presenceIntervalMillis = 100;
+    static PresenceCoalescer presence;
+    // Runs handlers and their writers; null means one platform thread each
+    private static ExecutorService executor;
+    static int outboundLimit = 1024;
+    static OutboundQueue.SlowConsumerPolicy slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.DROP_PRESENCE;
+    // Per-client rate limits, per second (0 for none), each allowing a burst of BURST_SECONDS
+    // worth. A client over a limit is not read from until it is back under it.
+    static double chatRate = 20;
+    static double dmRate = 20;
+    static double statusRate = 2;
+    static double fileBytesRate = 8 << 20;
+    private static final double BURST_SECONDS = 2;
+    // Admission control: most open connections (0 for no limit), and most file data queued
+    // for delivery before clients sending files are paused
+    static int maxConnections = 10_000;
+    static long maxQueuedFileBytes = 256L << 20;
+    // How long a file sender waits before the backlog is checked again
+    private static final long FILE_BACKLOG_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    // Clients that sent HELLO::heartbeat are pinged after this long without a word from
+    // them, and every session is closed once nothing has been read from it for idleTimeout
+    // (connections that never log in included). 0 disables reaping.
+    static long heartbeatNanos = TimeUnit.SECONDS.toNanos(15);
+    static long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(45);
+    // Every session's heartbeat timeout, plus resume token expiry
+    static final HashedTimerWheel timers = new HashedTimerWheel("timer-wheel", 100, 512);
+    private static final EncodedMessage PING = EncodedMessage.frame(FrameCodec.PING);
+    // Server-wide ids for streamed files, so two senders' transfers never collide
+    private static final AtomicLong transferIds = new AtomicLong();
+    private static final int MAX_TRANSFERS_PER_CLIENT = 4;
+    // Spool for shared files; null if it could not be opened, in which case files are relayed inline
+    private static BlobStore blobs;
+    private static int blobPort;
+    // Durable record of every broadcast and DM; null if disabled with --log-dir=none
+    private static MessageLog messageLog;
+    // Held only while a message is logged, which gives it its sequence number, and by a
+    // resume while it takes the session over. Recipients are queued for outside it, so two
+    // messages sent at once may reach a client in either order; clients skip repeats by seq.
+    static final ReentrantLock sequenceLock = new ReentrantLock();
+    // RESUME tokens -> username; a token stays valid for RESUME_GRACE_SECONDS after its session ends
+    static final ConcurrentHashMap<String, String> resumeTokens = new ConcurrentHashMap<>();
+    private static final long RESUME_GRACE_SECONDS = 120;
+    // Most messages replayed to a resuming client; older ones are skipped with a notice
+    private static final int MAX_REPLAY = 1000;
+    private static final SecureRandom random = new SecureRandom();
+    // Recent chat per room, replayed to joining clients; --history=0 disables it
+    static int historySize = 50;
+    // Everyone's room: plain chat and user events. Created once the options are parsed.
+    private static Room general;
+    // All other rooms, by name; a room exists while it has members
+    static final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    // Links to the other nodes; null when not clustered
+    private static Cluster cluster;
 
     public static void main(String[] args) {
         int port = PORT;
-        if (args != null && args.length > 0) {
+        String mode = "blocking";
+        int ioThreads = Runtime.getRuntime().availableProcessors();
+        String blobDir = "blobs";
+        blobPort = -1;
+        String logDir = "log";
+        int logSegmentMb = 64;
+        long logFsyncMillis = 1000;
+        int logFsyncEvery = 0;
+        long logRetentionMb = 1024;
+        long logRetentionHours = 24 * 7;
+        String nodeId = null;
+        int clusterPort = -1;
+        InetAddress clusterBind = null;
+        String clusterSecret = null;
+        List<InetSocketAddress> peers = new ArrayList<>();
+        boolean logDirGiven = false;
+        int metricsPort = -1;
+        if (args != null) {
+            for (String arg : args) {
+                if (arg.startsWith("--mode=")) {
+                    mode = arg.substring("--mode=".length()).trim().toLowerCase();
+                } else if (arg.startsWith("--queue-limit=")) {
+                    try {
+                        outboundLimit = Math.max(1, Integer.parseInt(arg.substring("--queue-limit=".length()).trim()));
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Invalid --queue-limit argument, using " + outboundLimit);
+                    }
+                } else if (arg.startsWith("--slow-consumer=")) {
+                    try {
+                        slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.parse(arg.substring("--slow-consumer=".length()));
+                    } catch (IllegalArgumentException iae) {
+                        System.out.println("Invalid --slow-consumer argument (drop-oldest, drop-presence or disconnect), using " + slowConsumerPolicy);
+                    }
+                } else if (arg.startsWith("--presence-interval=")) {
+                    try {
+                        presenceIntervalMillis = Math.max(1, Long.parseLong(arg.substring("--presence-interval=".length()).trim()));
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Invalid --presence-interval argument, using " + presenceIntervalMillis + " ms");
+                    }
+                } else if (arg.startsWith("--blob-dir=")) {
+                    blobDir = arg.substring("--blob-dir=".length()).trim();
+                } else if (arg.startsWith("--blob-port=")) {
+                    try {
+                        blobPort = Integer.parseInt(arg.substring("--blob-port=".length()).trim());
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Invalid --blob-port argument, using the chat port + 1");
+                    }
+                } else if (arg.startsWith("--log-dir=")) {
+                    logDir = arg.substring("--log-dir=".length()).trim();
+                    logDirGiven = true;
+                } else if (arg.startsWith("--log-")) {
+                    // --log-segment-mb, --log-fsync-ms, --log-fsync-every, --log-retention-mb, --log-retention-hours
+                    String name = arg.substring(2, arg.indexOf('=') < 0 ? arg.length() : arg.indexOf('='));
+                    try {
+                        long value = Long.parseLong(arg.substring(name.length() + 3).trim());
+                        if ("log-segment-mb".equals(name)) logSegmentMb = (int) Math.min(1024, Math.max(1, value));
+                        else if ("log-fsync-ms".equals(name)) logFsyncMillis = Math.max(1, value);
+                        else if ("log-fsync-every".equals(name)) logFsyncEvery = (int) Math.max(0, value);
+                        else if ("log-retention-mb".equals(name)) logRetentionMb = Math.max(1, value);
+                        else if ("log-retention-hours".equals(name)) logRetentionHours = Math.max(1, value);
+                        else System.out.println("Unknown option " + arg);
+                    } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                        System.out.println("Invalid " + name + " argument, using the default");
+                    }
+                } else if (arg.startsWith("--rate-")) {
+                    // --rate-chat, --rate-dm, --rate-status (messages per second), --rate-file-kb
+                    String name = arg.substring(2, arg.indexOf('=') < 0 ? arg.length() : arg.indexOf('='));
+                    try {
+                        double value = Math.max(0, Double.parseDouble(arg.substring(name.length() + 3).trim()));
+                        if ("rate-chat".equals(name)) chatRate = value;
+                        else if ("rate-dm".equals(name)) dmRate = value;
+                        else if ("rate-status".equals(name)) statusRate = value;
+                        else if ("rate-file-kb".equals(name)) fileBytesRate = value * 1024;
+                        else System.out.println("Unknown option " + arg);
+                    } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                        System.out.println("Invalid " + name + " argument, using the default");
+                    }
+                } else if (arg.startsWith("--max-connections=")) {
+                    try {
+                        maxConnections = Math.max(0, Integer.parseInt(arg.substring("--max-connections=".length()).trim()));
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Invalid --max-connections argument, using " + maxConnections);
+                    }
+                } else if (arg.startsWith("--max-file-backlog-mb=")) {
+                    try {
+                        maxQueuedFileBytes = Math.max(0, Long.parseLong(arg.substring("--max-file-backlog-mb=".length()).trim())) << 20;
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Invalid --max-file-backlog-mb argument, using " + (maxQueuedFileBytes >> 20) + " MB");
+                    }
+                } else if (arg.startsWith("--heartbeat=")) {
+                    try {
+                        heartbeatNanos = TimeUnit.SECONDS.toNanos(Math.max(1, Long.parseLong(arg.substring("--heartbeat=".length()).trim())));
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Invalid --heartbeat argument, using " + TimeUnit.NANOSECONDS.toSeconds(heartbeatNanos) + " s");
+                    }
+                } else if (arg.startsWith("--idle-timeout=")) {
+                    try {
+                        idleTimeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(arg.substring("--idle-timeout=".length()).trim())));
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Invalid --idle-timeout argument, using " + TimeUnit.NANOSECONDS.toSeconds(idleTimeoutNanos) + " s");
+                    }
+                } else if (arg.startsWith("--history=")) {
+                    try {
+                        historySize = Math.max(0, Integer.parseInt(arg.substring("--history=".length()).trim()));
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Invalid --history argument, using " + historySize);
+                    }
+                } else if (arg.startsWith("--node=")) {
+                    nodeId = arg.substring("--node=".length()).trim();
+                } else if (arg.startsWith("--cluster-port=")) {
+                    try {
+                        clusterPort = Integer.parseInt(arg.substring("--cluster-port=".length()).trim());
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Invalid --cluster-port argument, not accepting cluster links");
+                    }
+                } else if (arg.startsWith("--cluster-bind=")) {
+                    // the interface other nodes reach this one on; loopback if not given
+                    try {
+                        clusterBind = InetAddress.getByName(arg.substring("--cluster-bind=".length()).trim());
+                    } catch (UnknownHostException e) {
+                        System.out.println("Invalid --cluster-bind argument, accepting cluster links on loopback only");
+                    }
+                } else if (arg.startsWith("--cluster-secret=")) {
+                    clusterSecret = arg.substring("--cluster-secret=".length()).trim();
+                } else if (arg.startsWith("--peers=")) {
+                    // host:port of other nodes' cluster ports, comma-separated
+                    for (String peer : arg.substring("--peers=".length()).split(",")) {
+                        int colon = peer.lastIndexOf(':');
+                        try {
+                            peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon).trim(),
+                                    Integer.parseInt(peer.substring(colon + 1).trim())));
+                        } catch (RuntimeException e) {
+                            System.out.println("Invalid peer '" + peer + "', expected host:port");
+                        }
+                    }
+                } else if (arg.startsWith("--metrics-port=")) {
+                    try {
+                        metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()).trim());
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Invalid --metrics-port argument, not serving metrics over HTTP");
+                    }
+                } else if (arg.startsWith("--io-threads=")) {
+                    try {
+                        ioThreads = Math.max(1, Integer.parseInt(arg.substring("--io-threads=".length()).trim()));
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Invalid --io-threads argument, using " + ioThreads);
+                    }
+                } else {
+                    try {
+                        port = Integer.parseInt(arg);
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Invalid port argument, using default port " + PORT);
+                        port = PORT;
+                    }
+                }
+            }
+        }
+
+        if (!"blocking".equals(mode) && !"virtual".equals(mode) && !"nio".equals(mode)) {
+            System.out.println("Unknown mode '" + mode + "', using blocking mode");
+            mode = "blocking";
+        }
+        // before anything calls start(): the blob store and cluster links run on it too
+        if ("virtual".equals(mode)) {
+            executor = virtualThreadExecutor();
+            if (executor == null) {
+                System.err.println("--mode=virtual needs Java 21+, but this is Java " + System.getProperty("java.version")
+                        + ". Use --mode=blocking or --mode=nio, or run on a newer JDK.");
+                System.exit(1);
+            }
+        }
+
+        initialize();
+        if (clusterPort > 0 || !peers.isEmpty()) {
+            if (nodeId == null || nodeId.isEmpty()) nodeId = "node-" + port;
+            // nodes started side by side must not share a message log
+            if (!logDirGiven) logDir = logDir + File.separator + nodeId;
+        }
+        Metrics.registerMBean();
+        if (metricsPort > 0) {
+            try {
+                Metrics.serveHttp(metricsPort);
+            } catch (IOException e) {
+                System.out.println("Cannot serve metrics on port " + metricsPort + ": " + e.getMessage());
+            }
+        }
+        if (blobPort < 0) blobPort = port + 1;
+        try {
+            BlobStore store = new BlobStore(Paths.get(blobDir));
+            store.serve(blobPort);
+            blobs = store;
+        } catch (IOException e) {
+            System.out.println("Blob store unavailable (" + e.getMessage() + "); files will be relayed inline");
+        }
+        if (!"none".equals(logDir)) {
+            try {
+                messageLog = new MessageLog(Paths.get(logDir), logSegmentMb << 20, logFsyncMillis, logFsyncEvery,
+                        logRetentionMb << 20, TimeUnit.HOURS.toMillis(logRetentionHours));
+                MessageLog closing = messageLog;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        closing.close();
+                    } catch (IOException e) {
+                        System.out.println("Error closing message log: " + e.getMessage());
+                    }
+                }));
+            } catch (IOException e) {
+                System.out.println("Message log unavailable (" + e.getMessage() + "); running without history");
+            }
+        }
+
+        if ((clusterPort > 0 || !peers.isEmpty()) && (clusterSecret == null || clusterSecret.isEmpty())) {
+            System.out.println("Clustering needs --cluster-secret, shared by every node; running standalone");
+        } else if (clusterPort > 0 || !peers.isEmpty()) {
+            cluster = new Cluster(nodeId, clusterSecret);
+            if (clusterPort > 0) {
+                try {
+                    cluster.listen(clusterBind, clusterPort);
+                } catch (IOException e) {
+                    System.out.println("Cannot accept cluster links on port " + clusterPort + ": " + e.getMessage());
+                }
+            }
+            for (InetSocketAddress peer : peers) {
+                cluster.dial(new InetSocketAddress(peer.getHostString(), peer.getPort()));
+            }
+        }
+
+        if ("nio".equals(mode)) {
             try {
-                port = Integer.parseInt(args[0]);
-            } catch (NumberFormatException nfe) {
-                System.out.println("Invalid port argument, using default port " + PORT);
-                port = PORT;
+                new NioChatServer(port, ioThreads).run();
+            } catch (BindException be) {
+                System.err.println("Failed to bind to port " + port + ". It may already be in use or you may not have permission.");
+                be.printStackTrace();
+                System.exit(1);
+            } catch (IOException e) {
+                System.err.println("I/O error while running server: " + e.getMessage());
+                e.printStackTrace();
+                System.exit(1);
             }
+            return;
         }
 
-        ServerSocket serverSocket = null;
+        // A blocking channel rather than a plain ServerSocket so writers can hand the shared
+        // broadcast buffers straight to SocketChannel.write
+        ServerSocketChannel serverSocket = null;
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server started on port " + port);
+            serverSocket = ServerSocketChannel.open();
+            serverSocket.bind(new InetSocketAddress(port));
+            System.out.println("Server started on port " + port + " (" + mode + ")");
             System.out.println("Java runtime: " + System.getProperty("java.version") + " (home=" + System.getProperty("java.home") + ")");
             while (true) {
                 System.out.println("Waiting for client connection...");
-                Socket socket = serverSocket.accept();
+                SocketChannel channel = serverSocket.accept();
+                if (!admit(channel)) continue;
+                Socket socket = channel.socket();
                 System.out.println("New client connected from: " + socket.getInetAddress());
-                ClientHandler clientHandler = new ClientHandler(socket);
-                clients.add(clientHandler);
-                new Thread(clientHandler).start();
+                Metrics.connectionsAccepted.increment();
+                Metrics.connectionsOpen.increment();
+                start(new ClientHandler(socket));
             }
         } catch (BindException be) {
             System.err.println("Failed to bind to port " + port + ". It may already be in use or you may not have permission.");
@@ -43,7 +346,7 @@ public class ChatServer {
             e.printStackTrace();
             System.exit(1);
         } finally {
-            if (serverSocket != null && !serverSocket.isClosed()) {
+            if (serverSocket != null && serverSocket.isOpen()) {
                 try {
                     serverSocket.close();
                 } catch (IOException ignored) {
@@ -52,124 +355,1411 @@ public class ChatServer {
         }
     }
 
+    /**
+     * Creates the state every handler relies on, from the options parsed so far. Also used
+     * to run handlers without a listener, as the benchmarks do.
+     */
+    static void initialize() {
+        presence = new PresenceCoalescer(presenceIntervalMillis);
+        general = new Room(Protocol.DEFAULT_ROOM);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() only exists on Java 21+, so it is looked up
+     * reflectively to keep the server building on older JDKs.
+     * @return null on older JDKs
+     */
+    static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /** Virtual threads where available, else a cached platform thread pool (for tools, not --mode=virtual). */
+    static ExecutorService newVirtualThreadExecutor() {
+        ExecutorService virtual = virtualThreadExecutor();
+        if (virtual != null) return virtual;
+        System.out.println("Virtual threads need Java 21+, falling back to a cached platform thread pool");
+        return Executors.newCachedThreadPool();
+    }
+
+    // Entries in the shared roster format: "username|status, " for every online user
+    private static String rosterEntries() {
+        return rosterEntries(new HashSet<>());
+    }
+
+    // As above, adding the users listed to shown
+    private static String rosterEntries(Set<String> shown) {
+        StringBuilder entries = new StringBuilder();
+        for (String name : sessions.keySet()) {
+            // format: username|status
+            if (shown.add(name)) entries.append(name).append("|").append(statuses.getOrDefault(name, "Online")).append(", ");
+        }
+        if (cluster != null) {
+            for (String name : cluster.remoteUsers()) {
+                if (shown.add(name)) entries.append(name).append("|").append(statuses.getOrDefault(name, "Online")).append(", ");
+            }
+        }
+        return entries.toString();
+    }
+
+    /** Logged in here or, in a cluster, on another node. */
+    static boolean isOnline(String username) {
+        return sessions.containsKey(username) || (cluster != null && cluster.hasUser(username));
+    }
+
+    /** @param local true for users on this node, whose changes the other nodes are told about */
+    static void presenceChanged(String username, boolean local) {
+        presence.changed(username);
+        if (local && cluster != null) {
+            cluster.announceUser(username);
+        }
+    }
+
+    /**
+     * Sends one presence frame: the delta ops to clients that negotiated them and a full
+     * "Online users:" roster to legacy clients. Clients whose snapshot came after the last
+     * flush get ops of their own, worked out against what that snapshot showed them.
+     * Call with presenceLock held.
+     * @return whether anything was sent
+     */
+    static boolean publishPresence(PresenceCoalescer.Delta delta) {
+        List<String> ops = delta.ops(null);
+        EncodedMessage encodedDelta = null;
+        EncodedMessage roster = null;
+        boolean sent = false;
+        for (ClientHandler client : sessions.values()) {
+            if (client.presenceDeltas && client.presenceSeen != null) {
+                List<String> own = delta.ops(client.presenceSeen);
+                client.presenceSeen.keySet().removeAll(delta.names());
+                if (client.presenceSeen.isEmpty()) client.presenceSeen = null;
+                if (own.isEmpty()) continue;
+                client.send(EncodedMessage.frame(FrameCodec.PRESENCE, own.toArray()));
+            } else if (ops.isEmpty()) {
+                continue;
+            } else if (client.presenceDeltas) {
+                if (encodedDelta == null) encodedDelta = EncodedMessage.frame(FrameCodec.PRESENCE, ops.toArray());
+                client.send(encodedDelta);
+            } else {
+                if (roster == null) roster = EncodedMessage.of("Online users: " + rosterEntries());
+                client.send(roster);
+            }
+            sent = true;
+        }
+        return sent;
+    }
+
+    /** Appends to the message log, if enabled. @param target the DM recipient, or "" */
+    static void logMessage(String target, EncodedMessage message) {
+        if (messageLog == null) return;
+        sequenceLock.lock();
+        try {
+            // the log offset doubles as the sequence number: unique and increasing
+            message.sequenced(messageLog.append(target, message));
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error writing message log: " + e.getMessage());
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    /**
+     * A chat room. Only its members get its messages, so fan-out cost follows the audience
+     * rather than the number of users online. Each member maps to the history position its
+     * join backlog ended at (see ClientHandler.deliver). The general room has no member
+     * map: every logged-in user is in it, and it fans out over sessions.
+     */
+    static final class Room {
+        final String name;
+        // null with --history=0
+        final HistoryRing history;
+        final ConcurrentHashMap<ClientHandler, Long> members = new ConcurrentHashMap<>();
+
+        Room(String name) {
+            this.name = name;
+            this.history = historySize > 0 ? new HistoryRing(historySize) : null;
+        }
+    }
+
+    /**
+     * Logs a message to a room and queues it for the room's members here and on the other
+     * nodes; encoded once per protocol, shared by every recipient. Chat is also kept in the
+     * room's history.
+     */
+    static void broadcast(Room room, EncodedMessage message) {
+        long started = System.nanoTime();
+        fanOut(room, message);
+        Metrics.broadcastFanout.record(System.nanoTime() - started);
+        if (cluster != null) {
+            cluster.broadcast(room == general ? "" : room.name, message);
+        }
+    }
+
+    /** A room message from another node, for this node's members. @param roomName "" for general */
+    static void receiveBroadcast(String roomName, EncodedMessage message) {
+        Room room = roomName.isEmpty() ? general : rooms.get(roomName);
+        if (room == null) return; // its last member here just left
+        fanOut(room, message);
+    }
+
+    /** A DM from a user on another node. */
+    static void receiveDirect(String recipient, EncodedMessage message) {
+        ClientHandler target = sessions.get(recipient);
+        if (target == null) return;
+        logMessage(recipient, message);
+        target.send(message);
+    }
+
+    private static void fanOut(Room room, EncodedMessage message) {
+        logMessage(room == general ? "" : "#" + room.name, message);
+        HistoryRing ring = message.isPresence() ? null : room.history;
+        long position = ring != null ? ring.add(message) : -1;
+        if (room == general) {
+            for (ClientHandler client : sessions.values()) {
+                client.deliver(message, ring, position, client.backlogEnd);
+            }
+        } else {
+            for (Map.Entry<ClientHandler, Long> member : room.members.entrySet()) {
+                member.getKey().deliver(message, ring, position, member.getValue());
+            }
+        }
+    }
+
+    /** A broadcast held back from a joining client, with its history ring and position. */
+    private static final class Held {
+        final EncodedMessage message;
+        final HistoryRing ring;
+        final long position;
+
+        Held(EncodedMessage message, HistoryRing ring, long position) {
+            this.message = message;
+            this.ring = ring;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Collects the logged messages a resuming user missed: broadcasts, messages in their
+     * rooms, and DMs to or from them. Keeps the newest MAX_REPLAY.
+     */
+    private static final class Replay implements MessageLog.Visitor {
+        private final String username;
+        private final Set<String> rooms;
+        private long until;
+        final ArrayDeque<FrameCodec.Frame> frames = new ArrayDeque<>();
+        final ArrayDeque<Long> seqs = new ArrayDeque<>();
+        long skipped;
+
+        Replay(String username, Set<String> rooms) {
+            this.username = username;
+            this.rooms = rooms;
+        }
+
+        void read(long from, long until) {
+            if (messageLog == null || from >= until) return;
+            this.until = until;
+            try {
+                messageLog.read(from, this);
+            } catch (IOException e) {
+                System.out.println("Error reading message log: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public boolean record(long offset, long timestamp, String target, ByteBuffer frame) {
+            if (offset >= until) return false;
+            FrameCodec.Frame decoded;
+            try {
+                decoded = FrameCodec.decode(frame);
+            } catch (IOException e) {
+                System.out.println("Skipping unreadable log record at " + offset + ": " + e.getMessage());
+                return true;
+            }
+            boolean wanted;
+            if (decoded.type == FrameCodec.ROOM_CHAT) {
+                wanted = rooms.contains(decoded.string(0));
+            } else if (decoded.type == FrameCodec.ROOM_EVENT) {
+                wanted = rooms.contains(decoded.string(1));
+            } else {
+                wanted = target.isEmpty() || target.equals(username)
+                        || (decoded.type == FrameCodec.PRIVATE && decoded.string(0).equals(username));
+            }
+            if (wanted) {
+                frames.add(decoded);
+                seqs.add(offset);
+                if (frames.size() > MAX_REPLAY) {
+                    frames.removeFirst();
+                    seqs.removeFirst();
+                    skipped++;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Admission control for a connection just accepted (still in blocking mode): beyond
+     * --max-connections it is told the server is full and closed before any state is made
+     * for it, so a connection storm cannot exhaust threads or memory.
+     * @return false if the connection was turned away
+     */
+    static boolean admit(SocketChannel channel) {
+        if (maxConnections <= 0 || Metrics.connectionsOpen.sum() < maxConnections) return true;
+        System.out.println("Rejecting client from " + channel.socket().getInetAddress() + ": server full");
+        Metrics.connectionsRejected.increment();
+        try {
+            // a fresh socket's send buffer always has room for this, so it cannot block
+            channel.write(ByteBuffer.wrap("Server is full. Please try again later.\n".getBytes(java.nio.charset.StandardCharsets.UTF_8)));
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        return false;
+    }
+
+    // A rate limit for one client, or null if disabled
+    private static TokenBucket limit(double perSecond) {
+        return perSecond > 0 ? new TokenBucket(perSecond, perSecond * BURST_SECONDS) : null;
+    }
+
+    static void start(Runnable task) {
+        if (executor != null) {
+            executor.execute(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+    /**
+     * Reads lines from a blocking stream into one reused buffer, where they are parsed in
+     * place rather than made into Strings. Lines end with \n or \r\n.
+     */
+    static final class LineReader {
+        private static final int MAX_LINE = FrameCodec.MAX_PAYLOAD * 2;
+        private final InputStream input;
+        private byte[] buffer = new byte[8192];
+        // Unread bytes are buffer[position..limit)
+        private int position;
+        private int limit;
+        private int lineStart;
+        private int lineLength;
+
+        LineReader(InputStream input) {
+            this.input = input;
+        }
+
+        /** Reads the next line. @return false at the end of the stream */
+        boolean next() throws IOException {
+            int scanned = position;
+            while (true) {
+                for (int i = scanned; i < limit; i++) {
+                    if (buffer[i] == '\n') {
+                        lineStart = position;
+                        lineLength = i > position && buffer[i - 1] == '\r' ? i - 1 - position : i - position;
+                        position = i + 1;
+                        return true;
+                    }
+                }
+                // no line break yet: keep the partial line and read more after it
+                if (position > 0) {
+                    System.arraycopy(buffer, position, buffer, 0, limit - position);
+                    limit -= position;
+                    position = 0;
+                }
+                scanned = limit;
+                if (limit == buffer.length) {
+                    if (limit >= MAX_LINE) throw new IOException("Line too long");
+                    buffer = Arrays.copyOf(buffer, limit * 2);
+                }
+                int n = input.read(buffer, limit, buffer.length - limit);
+                if (n < 0) {
+                    // a last line without a line break still counts
+                    if (limit == position) return false;
+                    lineStart = position;
+                    lineLength = limit - position;
+                    position = limit;
+                    return true;
+                }
+                limit += n;
+            }
+        }
+
+        /** The last line is buffer()[lineStart() .. lineStart() + lineLength()), valid until the next read. */
+        byte[] buffer() {
+            return buffer;
+        }
+
+        int lineStart() {
+            return lineStart;
+        }
+
+        int lineLength() {
+            return lineLength;
+        }
+
+        /** The stream from just after the last line, for switching protocols. */
+        InputStream remaining() {
+            return new SequenceInputStream(new ByteArrayInputStream(buffer, position, limit - position), input);
+        }
+    }
+
     static class ClientHandler implements Runnable {
         private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
+        private boolean writerStarted;
+        private NioChatServer.Connection connection;
         private String username;
+        // Negotiated with HELLO::presence; otherwise the client gets a full roster per change
+        private boolean presenceDeltas;
+        // Where this client's snapshot was ahead of the last presence flush; under presenceLock
+        private Map<String, Boolean> presenceSeen;
+        // Negotiated with HELLO::binary; see FrameCodec
+        private volatile boolean binaryFrames;
+        // Negotiated with HELLO::file-chunks; only such clients are sent streamed files
+        private boolean fileChunks;
+        // Negotiated with HELLO::file-refs; such clients get FILE_REF and download from the blob port
+        private boolean fileRefs;
+        // Negotiated with HELLO::resume; such clients get sequence numbers and a session token
+        private boolean resumable;
+        private volatile String sessionToken;
+        // This client's uploads to the blob store in flight, by its transfer id; reader only
+        private final Map<String, BlobStore.Upload> uploads = new HashMap<>();
+        // This client's files in flight: its own transfer id -> the server-wide one.
+        // Only touched by the thread (or loop) reading from this client.
+        private final Map<String, String> transfers = new HashMap<>();
+        private final OutboundQueue outbound = new OutboundQueue(outboundLimit, slowConsumerPolicy);
+        // Broadcasts that arrive while the history backlog is being queued wait here, so the
+        // backlog comes first. Per client; broadcasts only take it while this client is joining.
+        private volatile List<Held> heldBack;
+        private final ReentrantLock backfillLock = new ReentrantLock();
+        // History positions of the general room below this were in the backlog and are not
+        // sent again; other rooms keep this in their member map
+        private volatile long backlogEnd;
+        // Rooms joined besides general
+        private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+        // For the handshake latency metric
+        private final long connectedAt = System.nanoTime();
+        // Splits this client's lines; only used by the thread (or loop) reading from it
+        private final CommandParser parser = new CommandParser();
+        // Rate limits by message class, and until when this client is over one; reader only
+        private final TokenBucket chatLimit = limit(chatRate);
+        private final TokenBucket dmLimit = limit(dmRate);
+        private final TokenBucket statusLimit = limit(statusRate);
+        private final TokenBucket fileLimit = limit(fileBytesRate);
+        private long limitedUntil;
+        // Set by file data, cleared once the server's file backlog is within its budget
+        private boolean sendingFiles;
+        // Negotiated with HELLO::heartbeat; such clients are pinged when quiet
+        private volatile boolean heartbeats;
+        // When something was last read from this client (or it was last held back by a limit)
+        private volatile long lastRead = System.nanoTime();
+        private volatile HashedTimerWheel.Timeout idleCheck;
+        private volatile boolean loggedOut;
+        // Why the server dropped this connection, so the reader logs that rather than the socket error
+        private volatile String closeReason;
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
         }
 
-        private void broadcastUserList() {
-            StringBuilder userList = new StringBuilder("Online users: ");
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    if (client.username != null) {
-                        String status = statuses.getOrDefault(client.username, "Online");
-                        // format: username|status
-                        userList.append(client.username).append("|").append(status).append(", ");
-                    }
-                }
-            }
-            broadcast(userList.toString());
+        ClientHandler(NioChatServer.Connection connection) {
+            this.connection = connection;
         }
 
         @Override
         public void run() {
             try {
                 System.out.println("Setting up streams for client...");
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), java.nio.charset.StandardCharsets.UTF_8));
-                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), java.nio.charset.StandardCharsets.UTF_8), true);
-                
+                // the OS probes clients that never negotiated heartbeats
+                socket.setKeepAlive(true);
+                watchIdle();
+                start(this::writeLoop);
+                writerStarted = true;
+                LineReader lines = new LineReader(Metrics.counting(socket.getInputStream()));
+
                 System.out.println("Requesting username...");
-                out.println("Enter your username:");
-                username = in.readLine();
-                
-                if (username == null || username.trim().isEmpty()) {
+                send(FrameCodec.PROMPT + FrameCodec.HELLO_PROMPT_SUFFIX);
+                while (lines.next()) {
+                    lastRead = System.nanoTime();
+                    if (!onLine(lines.buffer(), lines.lineStart(), lines.lineLength())) {
+                        return;
+                    }
+                    waitForLimits();
+                    if (binaryFrames) {
+                        // the client sends nothing after HELLO until it has our HELLO_OK, but
+                        // anything the line reader already holds is read as frames too
+                        readFrames(new DataInputStream(new BufferedInputStream(lines.remaining())));
+                        return;
+                    }
+                }
+                if (username == null) {
                     System.out.println("Client disconnected without providing username");
+                }
+            } catch (IOException e) {
+                if (closeReason != null) {
+                    System.out.println("Closed client " + (username != null ? username : "(not logged in)") + ": " + closeReason);
+                } else {
+                    System.out.println("Error handling client " + username + ": " + e.getMessage());
+                }
+            } finally {
+                Metrics.connectionsOpen.decrement();
+                logout();
+                if (writerStarted) {
+                    // the writer sends whatever is still queued, then closes the socket
+                    outbound.finish();
+                } else {
+                    closeSocket();
+                }
+            }
+        }
+
+        /** Drains this client's outbound queue; the only thread that writes to its socket. */
+        private void writeLoop() {
+            SocketChannel channel = socket.getChannel();
+            ByteBuffer[] batch = new ByteBuffer[64];
+            try {
+                int n;
+                while ((n = outbound.take(batch)) > 0) {
+                    // one gathering write per burst rather than one write per line
+                    int first = 0;
+                    while (first < n) {
+                        Metrics.bytesOut.add(channel.write(batch, first, n - first));
+                        while (first < n && !batch[first].hasRemaining()) {
+                            batch[first++] = null;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // the reader, failing on the socket closed below, logs this as the reason
+                closeReason = "write failed: " + e.getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                outbound.close();
+                closeSocket();
+            }
+        }
+
+        private void closeSocket() {
+            try {
+                if (socket != null && !socket.isClosed()) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error closing socket: " + e.getMessage());
+            }
+        }
+
+        private void readFrames(DataInputStream frames) throws IOException {
+            FrameCodec.Frame frame;
+            while ((frame = FrameCodec.read(frames)) != null) {
+                lastRead = System.nanoTime();
+                if (!onFrame(frame)) {
+                    return;
+                }
+                waitForLimits();
+            }
+        }
+
+        /**
+         * Blocking modes: sleeps while this client is over a limit. What it sends meanwhile
+         * stays in the socket, so a flooding client is held back by TCP flow control rather
+         * than buffered here.
+         */
+        private void waitForLimits() throws InterruptedIOException {
+            long pause = readPause();
+            if (pause <= 0) return;
+            Metrics.readPauses.increment();
+            try {
+                do {
+                    TimeUnit.NANOSECONDS.sleep(pause);
+                    // not idle: it is us not reading
+                    lastRead = System.nanoTime();
+                } while ((pause = readPause()) > 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while rate limited");
+            }
+        }
+
+        /**
+         * How long to stop reading from this client: until it is back under its rate limits
+         * or, if it is sending files while the server's file backlog is over budget, for a
+         * moment before checking again. 0 once it may be read from.
+         */
+        long readPause() {
+            long pause = limitedUntil - System.nanoTime();
+            if (pause > 0) return pause;
+            if (sendingFiles && maxQueuedFileBytes > 0 && OutboundQueue.queuedFileBytes() > maxQueuedFileBytes) {
+                return FILE_BACKLOG_PAUSE_NANOS;
+            }
+            sendingFiles = false;
+            return 0;
+        }
+
+        /** Something was read from this client (NIO: any bytes at all); it is not idle. */
+        void readActivity() {
+            lastRead = System.nanoTime();
+        }
+
+        /** Starts checking this client for idleness, once it is connected. */
+        void watchIdle() {
+            if (idleTimeoutNanos > 0) {
+                idleCheck = timers.schedule(this::checkIdle, Math.min(heartbeatNanos, idleTimeoutNanos), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * On the timer thread: closes the session if nothing has been read from it for the
+         * idle timeout and it negotiated heartbeats or never logged in, else pings it if it
+         * negotiated heartbeats and has been quiet, and checks again when the next of those
+         * could be due. One timeout per session, re-armed here rather than on every message.
+         */
+        private void checkIdle() {
+            if (loggedOut) return;
+            long idle = System.nanoTime() - lastRead;
+            if (idle >= idleTimeoutNanos) {
+                Metrics.idleEvictions.increment();
+                replaced((heartbeats ? "no answer to PING for " : "not logged in after ")
+                        + TimeUnit.NANOSECONDS.toSeconds(idle) + " s");
+                return;
+            }
+            long next;
+            if (idle < heartbeatNanos) {
+                next = heartbeatNanos - idle;
+            } else {
+                if (heartbeats) send(PING);
+                next = heartbeatNanos;
+            }
+            // a logged-in client without heartbeats may rightly be silent for good; if it is
+            // dead, a failed write or TCP keepalive finds out
+            if (username != null && !heartbeats) return;
+            idleCheck = timers.schedule(this::checkIdle, Math.min(next, idleTimeoutNanos - idle), TimeUnit.NANOSECONDS);
+        }
+
+        // Counts a message against this client's limits; fileBytes is the file data it carries
+        private void charge(byte type, long fileBytes) {
+            TokenBucket bucket;
+            long cost = 1;
+            switch (type) {
+                case FrameCodec.PONG:
+                    return;
+                case FrameCodec.DM:
+                    bucket = dmLimit;
+                    break;
+                case FrameCodec.STATUS:
+                    bucket = statusLimit;
+                    break;
+                case FrameCodec.FILE:
+                case FrameCodec.FILE_CHUNK:
+                    bucket = fileLimit;
+                    cost = fileBytes;
+                    sendingFiles = true;
+                    break;
+                default:
+                    // chat, room messages, joins and file announcements: each one fans out
+                    bucket = chatLimit;
+            }
+            if (bucket == null) return;
+            long now = System.nanoTime();
+            long wait = bucket.take(cost, now);
+            if (wait > 0) limitedUntil = Math.max(limitedUntil, now + wait);
+        }
+
+        /**
+         * Handles one inbound frame on the binary protocol. The first frame of a session
+         * must be LOGIN or RESUME.
+         * @return false if the session should be closed
+         */
+        boolean onFrame(FrameCodec.Frame frame) {
+            Metrics.messageIn(frame.type);
+            if (username == null) {
+                if (frame.type == FrameCodec.RESUME) {
+                    resume(frame.string(0), frame.string(1));
+                    return true;
+                }
+                return frame.type == FrameCodec.LOGIN && login(frame.string(0));
+            }
+            if (frame.type != FrameCodec.LINE) {
+                boolean file = frame.type == FrameCodec.FILE || frame.type == FrameCodec.FILE_CHUNK;
+                charge(frame.type, file ? frame.bytes(1).length : 0);
+            }
+            switch (frame.type) {
+                case FrameCodec.CHAT:
+                    chat(frame.string(0));
+                    break;
+                case FrameCodec.DM:
+                    directMessage(frame.string(0), frame.string(1));
+                    break;
+                case FrameCodec.STATUS:
+                    changeStatus(frame.string(0));
+                    break;
+                case FrameCodec.FILE:
+                    shareFile(frame.string(0), frame.bytes(1));
+                    break;
+                case FrameCodec.FILE_OFFER:
+                    offerFile(frame.string(0), frame.string(2), frame.string(3));
+                    break;
+                case FrameCodec.FILE_BEGIN:
+                    beginFile(frame.string(0), frame.string(1), frame.string(2));
+                    break;
+                case FrameCodec.FILE_CHUNK:
+                    fileChunk(frame.string(0), frame.bytes(1));
+                    break;
+                case FrameCodec.FILE_END:
+                    endFile(frame.string(0), "aborted".equals(frame.string(1)));
+                    break;
+                case FrameCodec.JOIN:
+                    joinRoom(frame.string(0));
+                    break;
+                case FrameCodec.LEAVE:
+                    leaveRoom(frame.string(0));
+                    break;
+                case FrameCodec.ROOM_CHAT:
+                    roomChat(frame.string(0), frame.string(1));
+                    break;
+                case FrameCodec.LINE:
+                    handleMessage(frame.string(0));
+                    break;
+                case FrameCodec.PONG:
+                    // reading it was the point
+                    break;
+                default:
+                    System.out.println("Ignoring frame type " + frame.type + " from " + username);
+            }
+            return true;
+        }
+
+        /** True once this client has switched to binary frames. */
+        boolean binaryFrames() {
+            return binaryFrames;
+        }
+
+        /**
+         * Handles one inbound line. The first line of a session is the username (or
+         * RESUME::token::lastSeq), every following line is a protocol message.
+         * @return false if the session should be closed
+         */
+        boolean onLine(String line) {
+            if (username == null) {
+                Metrics.messageIn(FrameCodec.LOGIN);
+                switch (parser.parseFirstLine(line)) {
+                    case CommandParser.HELLO:
+                        hello(line);
+                        return true;
+                    case FrameCodec.RESUME:
+                        resume(parser.field(0), parser.fieldCount() == 2 ? parser.field(1) : "-1");
+                        return true;
+                    default:
+                        return login(line);
+                }
+            }
+            Metrics.messageIn(parser.parseCommand(line));
+            handleCommand();
+            return true;
+        }
+
+        /**
+         * onLine for a line still in the read buffer, as UTF-8 without the line break. After
+         * login only the fields a command uses become Strings.
+         */
+        boolean onLine(byte[] buffer, int offset, int length) {
+            if (username == null) {
+                return onLine(new String(buffer, offset, length, java.nio.charset.StandardCharsets.UTF_8));
+            }
+            Metrics.messageIn(parser.parseCommand(buffer, offset, length));
+            handleCommand();
+            return true;
+        }
+
+        /**
+         * Optional first line from newer clients listing the protocol features they support:
+         * HELLO::feature[,feature...]. Clients that skip it get the original protocol.
+         */
+        void hello(String line) {
+            List<String> accepted = new ArrayList<>();
+            boolean binary = false;
+            for (String feature : line.substring("HELLO::".length()).split(",")) {
+                feature = feature.trim();
+                if ("presence".equals(feature)) {
+                    presenceDeltas = true;
+                    accepted.add(feature);
+                } else if ("binary".equals(feature)) {
+                    binary = true;
+                    accepted.add(feature);
+                } else if ("file-chunks".equals(feature)) {
+                    fileChunks = true;
+                    accepted.add(feature);
+                } else if ("resume".equals(feature)) {
+                    resumable = true;
+                    accepted.add(feature);
+                } else if ("heartbeat".equals(feature)) {
+                    heartbeats = true;
+                    accepted.add(feature);
+                } else if ("rooms".equals(feature)) {
+                    // JOIN, LEAVE and ROOM work for everyone; this only tells the client they exist
+                    accepted.add(feature);
+                } else if ("file-refs".equals(feature) && blobs != null) {
+                    fileRefs = true;
+                    // tells the client where to download blobs from
+                    accepted.add(feature + "=" + blobPort);
+                }
+            }
+            // still a text line; everything queued after it uses the negotiated protocol
+            send("HELLO_OK::" + String.join(",", accepted));
+            binaryFrames = binary;
+        }
+
+        /**
+         * Claims the requested username and announces the new user.
+         * @return false if the name is missing or already taken
+         */
+        boolean login(String requested) {
+            if (requested == null || requested.trim().isEmpty()) {
+                System.out.println("Client disconnected without providing username");
+                return false;
+            }
+
+            if (historySize > 0) {
+                heldBack = new ArrayList<>();
+            }
+            // a name in use on another node is refused too; two nodes accepting the same new
+            // name at the same instant is not detected
+            if ((cluster != null && cluster.hasUser(requested)) || sessions.putIfAbsent(requested, this) != null) {
+                heldBack = null;
+                send("Username already taken. Please try again.");
+                return false;
+            }
+            username = requested;
+            if (resumable) {
+                issueToken();
+            }
+            if (general.history != null) {
+                backfill(general);
+            }
+            Metrics.handshake.record(System.nanoTime() - connectedAt);
+
+            System.out.println("New user joined: " + username);
+            // Send a structured user event so clients can show it in the online users box
+            broadcast(general, EncodedMessage.frame(FrameCodec.USER_EVENT, "joined", username));
+            if (presenceDeltas) {
+                // one full snapshot on login, then only deltas
+                sendPresenceSnapshot();
+            }
+            presenceChanged(username, true);
+            return true;
+        }
+
+        /**
+         * Takes over the session a RESUME token belongs to and replays the broadcasts and DMs
+         * logged after lastSeq. A stale handler still holding the name (its socket died but
+         * we have not noticed yet) is swapped out with sessions.replace, so the name is never
+         * free in between. An unknown or expired token gets RESUME_FAILED, after which the
+         * client may log in normally on the same connection.
+         */
+        void resume(String token, String lastSeqText) {
+            // the replay is read from the log
+            offload(() -> resumeSession(token, lastSeqText));
+        }
+
+        private void resumeSession(String token, String lastSeqText) {
+            String name = resumeTokens.get(token);
+            if (name == null) {
+                send("RESUME_FAILED");
+                return;
+            }
+            long from;
+            try {
+                from = Long.parseLong(lastSeqText.trim()) + 1;
+            } catch (NumberFormatException e) {
+                from = 0;
+            }
+            // Most of the gap is read before the session is claimed, the rest after; neither under the lock
+            ClientHandler current = sessions.get(name);
+            Replay replay = new Replay(name, current != null ? current.joinedRooms : joinedRooms);
+            long start = messageLog != null ? messageLog.endOffset() : 0;
+            replay.read(from, start);
+
+            // broadcasts to the new session wait for the replay, so it comes first
+            heldBack = new ArrayList<>();
+            ClientHandler old;
+            long end;
+            sequenceLock.lock();
+            try {
+                old = sessions.get(name);
+                boolean claimed = resumeTokens.remove(token, name)
+                        && (old == null ? sessions.putIfAbsent(name, this) == null
+                                        : token.equals(old.sessionToken) && sessions.replace(name, old, this));
+                if (!claimed) {
+                    heldBack = null;
+                    send("RESUME_FAILED");
                     return;
                 }
+                username = name;
+                if (old != null) {
+                    takeOverRooms(old);
+                }
+                // everything logged from here on is queued for this session as it is sent
+                end = messageLog != null ? messageLog.endOffset() : 0;
+            } finally {
+                sequenceLock.unlock();
+            }
+            issueToken();
+            replay.read(Math.max(from, start), end);
+            if (replay.skipped > 0) {
+                send("System: " + replay.skipped + " older messages were not replayed.");
+            }
+            // a message logged before end may also have been queued for this session; the client skips it by seq
+            while (!replay.frames.isEmpty()) {
+                FrameCodec.Frame frame = replay.frames.removeFirst();
+                send(EncodedMessage.frame(frame.type, frame.strings()).sequenced(replay.seqs.removeFirst()));
+            }
+            releaseHeld();
 
-                synchronized (usernames) {
-                    if (usernames.contains(username)) {
-                        out.println("Username already taken. Please try again.");
+            Metrics.handshake.record(System.nanoTime() - connectedAt);
+            System.out.println("User resumed: " + username + (old != null ? " (took over the previous connection)" : ""));
+            if (old != null) {
+                old.replaced("resumed on another connection");
+            } else {
+                // the old session had already ended and been announced as left
+                broadcast(general, EncodedMessage.frame(FrameCodec.USER_EVENT, "joined", username));
+            }
+            if (presenceDeltas) {
+                sendPresenceSnapshot();
+            } else {
+                send("Online users: " + rosterEntries());
+            }
+            presenceChanged(username, true);
+        }
+
+        private void sendPresenceSnapshot() {
+            presenceLock.lock();
+            try {
+                Set<String> shown = new HashSet<>();
+                send(EncodedMessage.frame(FrameCodec.PRESENCE, "snapshot", rosterEntries(shown)));
+                presenceSeen = presence.snapshotSeen(shown);
+            } finally {
+                presenceLock.unlock();
+            }
+        }
+
+        /**
+         * Queues a room's recent history, then whatever was held back meanwhile. The ring
+         * is read without locks. A message broadcast just as we joined can be both in the
+         * snapshot and on its way to us; its position tells the copies apart. Call with
+         * heldBack set from before this client became a member.
+         */
+        private void backfill(Room room) {
+            HistoryRing.Snapshot backlog = room.history.snapshot();
+            backfillLock.lock();
+            try {
+                if (room == general) {
+                    backlogEnd = backlog.end;
+                } else {
+                    room.members.replace(this, backlog.end);
+                }
+                for (EncodedMessage message : backlog.messages) {
+                    send(message);
+                }
+                for (Held held : heldBack) {
+                    if (held.ring != room.history || held.position >= backlog.end) send(held.message);
+                }
+                heldBack = null;
+            } finally {
+                backfillLock.unlock();
+            }
+        }
+
+        // Sends what was held back during a resume's replay
+        private void releaseHeld() {
+            backfillLock.lock();
+            try {
+                for (Held held : heldBack) {
+                    send(held.message);
+                }
+                heldBack = null;
+            } finally {
+                backfillLock.unlock();
+            }
+        }
+
+        /**
+         * Sends a broadcast, or holds it back while this client's backlog is being queued.
+         * @param ring the history the message was kept in, or null
+         * @param position its position there, or -1
+         * @param seen where this client's backlog from that ring ended
+         */
+        void deliver(EncodedMessage message, HistoryRing ring, long position, long seen) {
+            if (heldBack != null) {
+                backfillLock.lock();
+                try {
+                    List<Held> held = heldBack;
+                    if (held != null) {
+                        held.add(new Held(message, ring, position));
                         return;
                     }
-                    usernames.add(username);
+                } finally {
+                    backfillLock.unlock();
                 }
+            }
+            if (position >= 0 && position < seen) return;
+            send(message);
+        }
 
-                System.out.println("New user joined: " + username);
-                // Send a structured user event so clients can show it in the online users box
-                broadcast("USER_EVENT::joined::" + username);
-                broadcastUserList();
-
-                String message;
-                while ((message = in.readLine()) != null) {
-                    if (message == null) break;
-                    if (message.startsWith("STATUS::")) {
-                        String newStatus = message.substring("STATUS::".length()).trim();
-                        statuses.put(username, newStatus);
-                        broadcastUserList();
-                        continue;
-                    }
-                    if (message.startsWith("FILE::")) {
-                        // message format: FILE::filename::base64
-                        String rest = message.substring("FILE::".length());
-                        // rebroadcast with sender info: FILE_FROM::username::filename::base64
-                        broadcast("FILE_FROM::" + username + "::" + rest);
-                    } else if (message.startsWith("DM::")) {
-                        // Format: DM::recipient::message
-                        String[] parts = message.substring("DM::".length()).split("::", 2);
-                        if (parts.length == 2) {
-                            String recipient = parts[0];
-                            String dmContent = parts[1];
-                            // Find recipient's handler and send only to them (and back to sender)
-                            boolean found = false;
-                            synchronized(clients) {
-                                for (ClientHandler client : clients) {
-                                    if (client.username != null && 
-                                        (client.username.equals(recipient) || client.username.equals(username))) {
-                                        client.out.println("PRIVATE::" + username + ": " + dmContent);
-                                        if (client.username.equals(recipient)) found = true;
-                                    }
-                                }
-                            }
-                            if (!found) {
-                                // Let sender know if recipient not found
-                                out.println("System: User '" + recipient + "' not found or offline.");
-                            }
+        /** Subscribes to a room, gets its recent history and announces the join to its members. */
+        private void joinRoom(String requested) {
+            String name = Protocol.roomName(requested);
+            if (name == null) {
+                send("System: Room names are 1-" + Protocol.MAX_ROOM_NAME + " letters, digits, '-' or '_'.");
+                return;
+            }
+            if (name.equals(Protocol.DEFAULT_ROOM) || !joinedRooms.add(name)) return;
+            if (historySize > 0) {
+                heldBack = new ArrayList<>();
+            }
+            // compute, so a room is never removed for being empty while someone joins it
+            boolean[] created = new boolean[1];
+            Room room = rooms.compute(name, (key, existing) -> {
+                created[0] = existing == null;
+                Room joined = existing != null ? existing : new Room(key);
+                joined.members.put(this, 0L);
+                return joined;
+            });
+            if (created[0] && cluster != null) {
+                cluster.announceRoom(name);
+            }
+            if (room.history != null) {
+                backfill(room);
+            }
+            broadcast(room, EncodedMessage.frame(FrameCodec.ROOM_EVENT, "joined", name, username));
+        }
+
+        private void leaveRoom(String requested) {
+            String name = Protocol.roomName(requested);
+            if (name == null || !joinedRooms.remove(name)) return;
+            Room room = rooms.get(name);
+            if (room != null) {
+                // the leaver gets it too, as confirmation
+                broadcast(room, EncodedMessage.frame(FrameCodec.ROOM_EVENT, "left", name, username));
+            }
+            removeFromRoom(name);
+        }
+
+        // Drops an empty room, history and all
+        private void removeFromRoom(String name) {
+            Room left = rooms.computeIfPresent(name, (key, room) -> {
+                room.members.remove(this);
+                return room.members.isEmpty() ? null : room;
+            });
+            if (left == null && cluster != null) {
+                cluster.announceRoom(name);
+            }
+        }
+
+        // Called on resume with sequenceLock held, before the replay's end is taken: a room
+        // message logged after that reaches this session, and one logged before is replayed
+        private void takeOverRooms(ClientHandler old) {
+            for (String name : old.joinedRooms) {
+                joinedRooms.add(name);
+                rooms.computeIfPresent(name, (key, room) -> {
+                    if (room.members.remove(old) != null) room.members.put(this, 0L);
+                    return room;
+                });
+            }
+        }
+
+        private void roomChat(String requested, String text) {
+            String name = Protocol.roomName(requested);
+            if (name == null) return;
+            if (name.equals(Protocol.DEFAULT_ROOM)) {
+                chat(text);
+                return;
+            }
+            Room room = rooms.get(name);
+            if (room == null || !joinedRooms.contains(name)) {
+                send("System: Join " + name + " before posting to it.");
+                return;
+            }
+            if (!text.trim().isEmpty()) {
+                broadcast(room, EncodedMessage.frame(FrameCodec.ROOM_CHAT, name, username, text));
+            }
+        }
+
+        // Gives this session a fresh resume token and tells the client
+        private void issueToken() {
+            byte[] bytes = new byte[16];
+            random.nextBytes(bytes);
+            sessionToken = Protocol.hex(bytes);
+            resumeTokens.put(sessionToken, username);
+            send(EncodedMessage.frame(FrameCodec.SESSION, sessionToken));
+        }
+
+        /**
+         * Drops this connection after a RESUME took its session over, or when it is found idle.
+         * No "left" is announced here; the reader does that as it fails out, unless the session
+         * has been taken over.
+         */
+        private void replaced(String reason) {
+            closeReason = reason;
+            if (connection != null) {
+                System.out.println("Closed client " + (username != null ? username : "(not logged in)") + ": " + reason);
+                connection.shutdown();
+            } else {
+                outbound.close();
+                closeSocket();
+            }
+        }
+
+        void handleMessage(String message) {
+            parser.parseCommand(message);
+            handleCommand();
+        }
+
+        // Handles the command just parsed; field layouts as in CommandParser
+        private void handleCommand() {
+            CommandParser command = parser;
+            boolean file = command.type() == FrameCodec.FILE || command.type() == FrameCodec.FILE_CHUNK;
+            // Base64 is 4 characters per 3 bytes
+            charge(command.type(), file && command.fieldCount() == 2 ? (command.end(1) - command.start(1)) * 3L / 4 : 0);
+            switch (command.type()) {
+                case FrameCodec.STATUS:
+                    changeStatus(command.field(0));
+                    break;
+                case FrameCodec.FILE:
+                    // Format: FILE::filename::base64
+                    if (command.fieldCount() == 2) {
+                        shareFile(command.field(0), command.field(1));
+                    }
+                    break;
+                case FrameCodec.FILE_OFFER:
+                    // Format: FILE_OFFER::id::size::sha256::filename
+                    if (command.fieldCount() == 4) {
+                        offerFile(command.field(0), command.field(2), command.field(3));
+                    }
+                    break;
+                case FrameCodec.FILE_BEGIN:
+                    // Format: FILE_BEGIN::id::size::filename
+                    if (command.fieldCount() == 3) {
+                        beginFile(command.field(0), command.field(1), command.field(2));
+                    }
+                    break;
+                case FrameCodec.FILE_CHUNK:
+                    // Format: FILE_CHUNK::id::base64
+                    if (command.fieldCount() == 2) {
+                        String id = command.field(0);
+                        try {
+                            fileChunk(id, command.base64Field(1));
+                        } catch (IllegalArgumentException e) {
+                            endFile(id, true);
+                            send("System: File transfer aborted: invalid data.");
                         }
-                    } else if (!message.trim().isEmpty()) {
-                        broadcast(username + ": " + message);
                     }
-                }
-            } catch (IOException e) {
-                System.out.println("Error handling client " + username + ": " + e.getMessage());
-            } finally {
+                    break;
+                case FrameCodec.FILE_END:
+                    // Format: FILE_END::id[::aborted]
+                    endFile(command.field(0), command.fieldCount() == 2 && command.fieldEquals(1, "aborted"));
+                    break;
+                case FrameCodec.JOIN:
+                    joinRoom(command.field(0));
+                    break;
+                case FrameCodec.LEAVE:
+                    leaveRoom(command.field(0));
+                    break;
+                case FrameCodec.ROOM_CHAT:
+                    // Format: ROOM::room::message
+                    if (command.fieldCount() == 2) {
+                        roomChat(command.field(0), command.field(1));
+                    }
+                    break;
+                case FrameCodec.PONG:
+                    // reading it was the point
+                    break;
+                case FrameCodec.DM:
+                    // Format: DM::recipient::message
+                    if (command.fieldCount() == 2) {
+                        directMessage(command.field(0), command.field(1));
+                    }
+                    break;
+                default:
+                    chat(command.field(0));
+            }
+        }
+
+        private void changeStatus(String status) {
+            statuses.put(username, status.trim());
+            presenceChanged(username, true);
+        }
+
+        /**
+         * Runs work that waits on the disk: on a worker in nio mode, so the loop's other
+         * connections are not held up meanwhile, and in place on the reader thread otherwise.
+         */
+        private void offload(Runnable work) {
+            if (connection != null) {
+                connection.offload(work);
+            } else {
+                work.run();
+            }
+        }
+
+        private void chat(String text) {
+            if (!text.trim().isEmpty()) {
+                broadcast(general, EncodedMessage.frame(FrameCodec.CHAT, username, text));
+            }
+        }
+
+        /**
+         * A whole file in one message, from clients without file-refs. It is still spooled
+         * so file-refs clients get a reference; only legacy clients get the bytes inline.
+         * @param data raw bytes from a binary client, or the Base64 text from a text client
+         */
+        private void shareFile(String filename, Object data) {
+            offload(() -> {
+                byte[] bytes;
                 try {
-                    if (socket != null && !socket.isClosed()) {
-                        socket.close();
+                    // checked here: bad Base64 would otherwise fail later, when encoding for binary clients
+                    bytes = data instanceof byte[] ? (byte[]) data : Base64.getDecoder().decode((String) data);
+                } catch (IllegalArgumentException e) {
+                    send("System: " + filename + " was not sent: invalid data.");
+                    return;
+                }
+                String hash = null;
+                long size = 0;
+                if (blobs != null) {
+                    BlobStore.Upload upload = null;
+                    try {
+                        upload = blobs.begin(filename);
+                        upload.write(bytes);
+                        size = bytes.length;
+                        hash = upload.commit();
+                    } catch (IOException e) {
+                        System.out.println("Could not spool " + filename + " from " + username + ": " + e.getMessage());
+                        if (upload != null) upload.abort();
                     }
+                }
+                // rebroadcast with sender info: FILE_FROM::username::filename::base64
+                EncodedMessage inline = EncodedMessage.frame(FrameCodec.FILE_FROM, username, filename, data);
+                EncodedMessage reference = hash == null ? null
+                        : EncodedMessage.frame(FrameCodec.FILE_REF, username, hash, String.valueOf(size), filename);
+                if (reference != null) logMessage("", reference);
+                for (ClientHandler client : sessions.values()) {
+                    client.send(client.fileRefs && reference != null ? reference : inline);
+                }
+                localFileOnly(filename);
+            });
+        }
+
+        // Files are not routed between nodes; say so while users on other nodes could miss one
+        private void localFileOnly(String filename) {
+            if (cluster != null && !cluster.remoteUsers().isEmpty()) {
+                send("System: " + filename + " went to users on this server only; files do not reach other cluster nodes.");
+            }
+        }
+
+        /**
+         * A client with file-refs announces a file by digest. If the blob is already stored
+         * it is shared straight away and the client skips the upload; otherwise the client
+         * is asked to upload it as FILE_CHUNKs, which are spooled rather than relayed.
+         */
+        private void offerFile(String id, String hash, String filename) {
+            offload(() -> {
+                if (blobs == null || uploads.containsKey(id) || uploads.size() >= MAX_TRANSFERS_PER_CLIENT) {
+                    send(EncodedMessage.frame(FrameCodec.FILE_ACK, id, "rejected"));
+                    return;
+                }
+                if (blobs.contains(hash)) {
+                    try {
+                        send(EncodedMessage.frame(FrameCodec.FILE_ACK, id, "stored"));
+                        shareBlob(hash, blobs.size(hash), filename);
+                        return;
+                    } catch (IOException e) {
+                        System.out.println("Blob " + hash + " unreadable, asking for upload: " + e.getMessage());
+                    }
+                }
+                try {
+                    uploads.put(id, blobs.begin(filename));
+                    send(EncodedMessage.frame(FrameCodec.FILE_ACK, id, "upload"));
                 } catch (IOException e) {
-                    System.out.println("Error closing socket: " + e.getMessage());
+                    System.out.println("Could not start upload from " + username + ": " + e.getMessage());
+                    send(EncodedMessage.frame(FrameCodec.FILE_ACK, id, "rejected"));
+                }
+            });
+        }
+
+        // Announces a stored blob to everyone but its sender; legacy clients just get a notice
+        private void shareBlob(String hash, long size, String filename) {
+            EncodedMessage reference = EncodedMessage.frame(FrameCodec.FILE_REF, username, hash, String.valueOf(size), filename);
+            EncodedMessage notice = null;
+            logMessage("", reference);
+            for (ClientHandler client : sessions.values()) {
+                if (client == this) continue;
+                if (client.fileRefs) {
+                    client.send(reference);
+                } else {
+                    if (notice == null) {
+                        notice = EncodedMessage.of("System: " + username + " shared " + filename + " (" + size + " bytes), but this client cannot download it.");
+                    }
+                    client.send(notice);
+                }
+            }
+            localFileOnly(filename);
+        }
+
+        /**
+         * Starts relaying a streamed file. Chunks are passed on as they arrive and never
+         * collected, so the server holds at most one chunk per transfer however big the
+         * file is.
+         */
+        private void beginFile(String id, String size, String filename) {
+            if (transfers.containsKey(id) || transfers.size() >= MAX_TRANSFERS_PER_CLIENT) {
+                send("System: Too many file transfers in progress; " + filename + " was not sent.");
+                return;
+            }
+            String transferId = String.valueOf(transferIds.incrementAndGet());
+            transfers.put(id, transferId);
+            relayFile(EncodedMessage.frame(FrameCodec.FILE_BEGIN, username, transferId, size, filename),
+                    EncodedMessage.of("System: " + username + " shared " + filename + ", but this client cannot receive streamed files."));
+            localFileOnly(filename);
+        }
+
+        private void fileChunk(String id, byte[] data) {
+            BlobStore.Upload upload = uploads.get(id);
+            if (upload != null) {
+                offload(() -> {
+                    try {
+                        upload.write(data);
+                    } catch (IOException e) {
+                        System.out.println("Upload of " + upload.filename + " from " + username + " failed: " + e.getMessage());
+                        uploads.remove(id);
+                        upload.abort();
+                        send(EncodedMessage.frame(FrameCodec.FILE_ACK, id, "rejected"));
+                    }
+                });
+                return;
+            }
+            String transferId = transfers.get(id);
+            if (transferId != null) {
+                relayFile(EncodedMessage.frame(FrameCodec.FILE_CHUNK, transferId, data), null);
+            }
+        }
+
+        private void endFile(String id, boolean aborted) {
+            BlobStore.Upload upload = uploads.remove(id);
+            if (upload != null) {
+                if (aborted) {
+                    upload.abort();
+                    return;
                 }
-                
-                if (username != null) {
-                    usernames.remove(username);
-                    clients.remove(this);
-                    // Send a structured user event so clients can show it in the online users box
-                    broadcast("USER_EVENT::left::" + username);
-                    broadcastUserList();
+                offload(() -> {
+                    try {
+                        String hash = upload.commit();
+                        send(EncodedMessage.frame(FrameCodec.FILE_ACK, id, "stored"));
+                        shareBlob(hash, upload.size(), upload.filename);
+                    } catch (IOException e) {
+                        System.out.println("Upload of " + upload.filename + " from " + username + " failed: " + e.getMessage());
+                        upload.abort();
+                        send(EncodedMessage.frame(FrameCodec.FILE_ACK, id, "rejected"));
+                    }
+                });
+                return;
+            }
+            String transferId = transfers.remove(id);
+            if (transferId != null) {
+                relayFile(aborted
+                        ? EncodedMessage.frame(FrameCodec.FILE_END, transferId, "aborted")
+                        : EncodedMessage.frame(FrameCodec.FILE_END, transferId), null);
+            }
+        }
+
+        // Streamed files go to everyone but the sender; fallback (if any) to clients without file-chunks
+        private void relayFile(EncodedMessage message, EncodedMessage fallback) {
+            for (ClientHandler client : sessions.values()) {
+                if (client == this) continue;
+                if (client.fileChunks) {
+                    client.send(message);
+                } else if (fallback != null) {
+                    client.send(fallback);
                 }
             }
         }
 
-        private void broadcast(String message) {
-            for (ClientHandler client : clients) {
-                client.out.println(message);
+        private void directMessage(String recipient, String dmContent) {
+            // Send only to the recipient and back to the sender
+            EncodedMessage privateMessage = EncodedMessage.frame(FrameCodec.PRIVATE, username, dmContent);
+            ClientHandler target = sessions.get(recipient);
+            boolean delivered = target != null;
+            if (target == null && cluster != null) {
+                delivered = cluster.direct(recipient, privateMessage);
+            }
+            if (delivered) {
+                logMessage(recipient, privateMessage);
+            }
+            if (target != null && target != this) {
+                target.send(privateMessage);
+            }
+            send(privateMessage);
+            if (!delivered) {
+                // Let sender know if recipient not found
+                send("System: User '" + recipient + "' not found or offline.");
+            }
+        }
+
+        /** Releases the username and tells everyone the user left. Safe to call more than once. */
+        void logout() {
+            loggedOut = true;
+            HashedTimerWheel.Timeout check = idleCheck;
+            if (check != null) check.cancel();
+            // receivers discard the partial files
+            for (String id : new ArrayList<>(transfers.keySet())) {
+                endFile(id, true);
+            }
+            for (BlobStore.Upload upload : uploads.values()) {
+                upload.abort();
             }
+            uploads.clear();
+            // silently: the "left" user event below reaches every room's members anyway
+            for (String name : joinedRooms) {
+                removeFromRoom(name);
+            }
+            // false if a resumed connection has taken the session over
+            if (username != null && sessions.remove(username, this)) {
+                // Send a structured user event so clients can show it in the online users box
+                broadcast(general, EncodedMessage.frame(FrameCodec.USER_EVENT, "left", username));
+                presenceChanged(username, true);
+                String token = sessionToken;
+                if (token != null) {
+                    String name = username;
+                    timers.schedule(() -> resumeTokens.remove(token, name), RESUME_GRACE_SECONDS, TimeUnit.SECONDS);
+                }
+            }
+        }
+
+        void send(String message) {
+            send(EncodedMessage.of(message));
+        }
+
+        /** Queues a message for this client. Never blocks on the client's socket. */
+        void send(EncodedMessage message) {
+            message = message.forProtocol((binaryFrames ? EncodedMessage.BINARY : 0) | (resumable ? EncodedMessage.SEQUENCED : 0));
+            Metrics.messageOut(message.type());
+            if (connection != null) {
+                connection.write(message);
+            } else if (!outbound.offer(message)) {
+                System.out.println("Disconnecting slow client " + username + ": outbound queue full");
+                Metrics.slowConsumerDisconnects.increment();
+                // the blocked reader and writer both fail out once the socket is closed
+                outbound.close();
+                closeSocket();
+            }
+        }
+
+        /** Messages waiting to be written to this client. */
+        int queued() {
+            return connection != null ? connection.queued() : outbound.size();
         }
     }
-}
\ No newline at end of file
+}
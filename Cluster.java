@@ -0,0 +1,381 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Links this server to the other nodes of a cluster, one TCP connection per pair of nodes
+ * (a full mesh). Every node tells the others which users are logged in on it and which
+ * rooms have members on it, and a message is sent by the node it originates on straight
+ * to each node that needs it: general broadcasts to all, room messages to nodes with
+ * members in the room, DMs to the recipient's node. Nothing is forwarded, so a message
+ * crosses each link at most once, and it is encoded once however many links it goes out on.
+ *
+ * Links carry FrameCodec frames of the types below. Each side opens with NODE and then
+ * proves it holds the cluster's shared secret with AUTH, an HMAC of the nonce the other
+ * side sent; the secret itself never crosses the link. If two nodes dialed each other,
+ * the link dialed by the node with the smaller id is kept. Presence and rooms are sent in
+ * full whenever a link comes up, so a node that restarts simply rejoins. Files, blobs and
+ * resume tokens stay local to each node: a file reaches only the users on its sender's node.
+ */
+class Cluster {
+    /** [nodeId, dialerId, nonce]: first frame on a link, from each side. */
+    static final byte NODE = 100;
+    /** [op, username, status]: op is add, status or remove. */
+    static final byte USER = 101;
+    /** [op, room]: the sender has (add) or no longer has (remove) members in the room. */
+    static final byte INTEREST = 102;
+    /** [room, frame]: a message for everyone in a room; room "" is general. */
+    static final byte BROADCAST = 103;
+    /** [recipient, frame]: a DM for a user on the receiving node. */
+    static final byte DIRECT = 104;
+    /** [mac]: HMAC-SHA256 under the shared secret of the other side's nonce and this node's id. */
+    static final byte AUTH = 105;
+
+    // Messages a link may fall behind by before it is dropped (and redialed)
+    private static final int LINK_QUEUE_LIMIT = 65536;
+    private static final long REDIAL_MILLIS = 2000;
+    // How long a new link has to complete its handshake
+    private static final int HANDSHAKE_MILLIS = 10_000;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String nodeId;
+    private final SecretKeySpec secret;
+    // Connected nodes by id
+    private final ConcurrentHashMap<String, Peer> links = new ConcurrentHashMap<>();
+    // Users logged in on other nodes -> their node
+    private final ConcurrentHashMap<String, String> remoteUsers = new ConcurrentHashMap<>();
+    // Serializes announcements with the full state sent to a new link, so a link never
+    // gets an older state after a newer one
+    private final ReentrantLock stateLock = new ReentrantLock();
+
+    /** @param secret shared by every node of the cluster */
+    Cluster(String nodeId, String secret) {
+        this.nodeId = nodeId;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    }
+
+    /**
+     * Accepts links from other nodes on a daemon thread.
+     * @param address the interface to listen on, or null for loopback only
+     */
+    void listen(InetAddress address, int port) throws IOException {
+        if (address == null) address = InetAddress.getLoopbackAddress();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(address, port));
+        System.out.println("Cluster node " + nodeId + " listening for peers on " + address.getHostAddress() + ":" + port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    SocketChannel channel = server.accept();
+                    ChatServer.start(() -> new Peer(channel, false).run());
+                } catch (IOException e) {
+                    System.out.println("Error accepting cluster link: " + e.getMessage());
+                }
+            }
+        }, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Keeps a link to the node at the given address, redialing whenever it drops. */
+    void dial(InetSocketAddress address) {
+        Thread dialer = new Thread(() -> {
+            String known = null;
+            while (true) {
+                // the other node may have dialed us and won; leave that link alone
+                if (known == null || !links.containsKey(known)) {
+                    try {
+                        Peer peer = new Peer(SocketChannel.open(address), true);
+                        peer.run();
+                        known = peer.remoteId;
+                    } catch (IOException e) {
+                        // not up yet
+                    }
+                }
+                try {
+                    Thread.sleep(REDIAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "cluster-dial-" + address);
+        dialer.setDaemon(true);
+        dialer.start();
+    }
+
+    boolean hasUser(String username) {
+        return remoteUsers.containsKey(username);
+    }
+
+    Set<String> remoteUsers() {
+        return remoteUsers.keySet();
+    }
+
+    /** Tells every node the current presence of a local user. */
+    void announceUser(String username) {
+        stateLock.lock();
+        try {
+            EncodedMessage message = userState(username);
+            for (Peer peer : links.values()) {
+                peer.send(message);
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private static EncodedMessage userState(String username) {
+        return ChatServer.sessions.containsKey(username)
+                ? EncodedMessage.frame(USER, "add", username, ChatServer.statuses.getOrDefault(username, "Online"))
+                : EncodedMessage.frame(USER, "remove", username, "");
+    }
+
+    /** Tells every node whether this node now has members in a room. */
+    void announceRoom(String room) {
+        stateLock.lock();
+        try {
+            EncodedMessage message = EncodedMessage.frame(INTEREST, ChatServer.rooms.containsKey(room) ? "add" : "remove", room);
+            for (Peer peer : links.values()) {
+                peer.send(message);
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a locally originated message to the nodes that have users in the room.
+     * @param room the room name, or "" for general
+     */
+    void broadcast(String room, EncodedMessage message) {
+        EncodedMessage wrapped = null;
+        for (Peer peer : links.values()) {
+            if (room.isEmpty() || peer.interests.contains(room)) {
+                if (wrapped == null) wrapped = EncodedMessage.frame(BROADCAST, room, frameBytes(message));
+                peer.send(wrapped);
+            }
+        }
+    }
+
+    /** @return false if the recipient is not logged in on another node */
+    boolean direct(String recipient, EncodedMessage message) {
+        String node = remoteUsers.get(recipient);
+        Peer peer = node != null ? links.get(node) : null;
+        if (peer == null) return false;
+        peer.send(EncodedMessage.frame(DIRECT, recipient, frameBytes(message)));
+        return true;
+    }
+
+    // The message's client frame without a sequence number; each node numbers it in its own log
+    private static byte[] frameBytes(EncodedMessage message) {
+        ByteBuffer buffer = message.forProtocol(EncodedMessage.BINARY).buffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static EncodedMessage unwrap(byte[] frame) throws IOException {
+        FrameCodec.Frame decoded = FrameCodec.decode(ByteBuffer.wrap(frame));
+        if (decoded == null) throw new IOException("Truncated message on cluster link");
+        return EncodedMessage.frame(decoded.type, decoded.strings());
+    }
+
+    // A link that won the tie-break replaces the other; returns the link that was dropped, if any
+    private Peer register(Peer peer) {
+        Peer[] loser = new Peer[1];
+        links.compute(peer.remoteId, (id, current) -> {
+            if (current == null) return peer;
+            boolean keepNew = peer.dialerId.compareTo(current.dialerId) < 0;
+            loser[0] = keepNew ? current : peer;
+            return keepNew ? peer : current;
+        });
+        return loser[0];
+    }
+
+    // The node is gone: its users leave, and local clients are told so
+    private void dropNode(String id) {
+        System.out.println("Cluster node " + id + " disconnected");
+        for (Map.Entry<String, String> user : remoteUsers.entrySet()) {
+            if (user.getValue().equals(id) && remoteUsers.remove(user.getKey(), id)) {
+                forgetStatus(user.getKey());
+                ChatServer.receiveBroadcast("", EncodedMessage.frame(FrameCodec.USER_EVENT, "left", user.getKey()));
+                ChatServer.presenceChanged(user.getKey(), false);
+            }
+        }
+    }
+
+    // A remote user's status is only kept while they are on another node
+    private static void forgetStatus(String username) {
+        if (!ChatServer.sessions.containsKey(username)) ChatServer.statuses.remove(username);
+    }
+
+    // Proof of the shared secret for the given nonce, bound to the id of the node giving it
+    private byte[] mac(String nonce, String id) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            return mac.doFinal((nonce + ":" + id).getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    /** One link to another node: a reader on the calling thread and a writer draining a queue. */
+    private final class Peer {
+        private final SocketChannel channel;
+        private final boolean dialed;
+        private final OutboundQueue outbound = new OutboundQueue(LINK_QUEUE_LIMIT, OutboundQueue.SlowConsumerPolicy.DISCONNECT);
+        // Rooms the other node has members in
+        final Set<String> interests = ConcurrentHashMap.newKeySet();
+        String remoteId;
+        String dialerId;
+        private volatile boolean closed;
+
+        Peer(SocketChannel channel, boolean dialed) {
+            this.channel = channel;
+            this.dialed = dialed;
+        }
+
+        void send(EncodedMessage message) {
+            // built once per message and shared by every link
+            if (!outbound.offer(message.forProtocol(EncodedMessage.BINARY))) {
+                System.out.println("Cluster link to " + remoteId + " fell too far behind; dropping it");
+                close();
+            }
+        }
+
+        void run() {
+            ChatServer.start(this::writeLoop);
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+                byte[] bytes = new byte[16];
+                random.nextBytes(bytes);
+                String nonce = Protocol.hex(bytes);
+                channel.socket().setSoTimeout(HANDSHAKE_MILLIS);
+                send(EncodedMessage.frame(NODE, nodeId, dialed ? nodeId : "", nonce));
+                FrameCodec.Frame hello = FrameCodec.read(in);
+                if (hello == null || hello.type != NODE || hello.fieldCount() < 3 || hello.string(0).isEmpty() || hello.string(0).equals(nodeId)) {
+                    System.out.println("Rejecting cluster link from " + channel.socket().getRemoteSocketAddress() + ": bad handshake");
+                    return;
+                }
+                send(EncodedMessage.frame(AUTH, mac(hello.string(2), nodeId)));
+                FrameCodec.Frame auth = FrameCodec.read(in);
+                if (auth == null || auth.type != AUTH || !MessageDigest.isEqual(auth.bytes(0), mac(nonce, hello.string(0)))) {
+                    System.out.println("Rejecting cluster link from " + channel.socket().getRemoteSocketAddress() + ": wrong cluster secret");
+                    return;
+                }
+                channel.socket().setSoTimeout(0);
+                remoteId = hello.string(0);
+                dialerId = dialed ? nodeId : hello.string(1);
+                Peer loser = register(this);
+                if (loser != null) {
+                    loser.close();
+                    if (loser == this) return;
+                }
+                System.out.println("Cluster link to node " + remoteId + " is up");
+                sendState();
+                FrameCodec.Frame frame;
+                while ((frame = FrameCodec.read(in)) != null) {
+                    receive(frame);
+                }
+            } catch (IOException e) {
+                if (remoteId != null && !closed) System.out.println("Cluster link to " + remoteId + " failed: " + e.getMessage());
+            } finally {
+                close();
+                if (remoteId != null && links.remove(remoteId, this)) {
+                    dropNode(remoteId);
+                }
+            }
+        }
+
+        // Everything the other node needs to know about this one
+        private void sendState() {
+            stateLock.lock();
+            try {
+                for (String username : ChatServer.sessions.keySet()) {
+                    send(userState(username));
+                }
+                for (String room : ChatServer.rooms.keySet()) {
+                    send(EncodedMessage.frame(INTEREST, "add", room));
+                }
+            } finally {
+                stateLock.unlock();
+            }
+        }
+
+        private void receive(FrameCodec.Frame frame) throws IOException {
+            switch (frame.type) {
+                case USER: {
+                    String username = frame.string(1);
+                    if ("remove".equals(frame.string(0))) {
+                        if (!remoteUsers.remove(username, remoteId)) return;
+                        forgetStatus(username);
+                    } else {
+                        remoteUsers.put(username, remoteId);
+                        ChatServer.statuses.put(username, frame.string(2));
+                    }
+                    ChatServer.presenceChanged(username, false);
+                    break;
+                }
+                case INTEREST:
+                    if ("add".equals(frame.string(0))) {
+                        interests.add(frame.string(1));
+                    } else {
+                        interests.remove(frame.string(1));
+                    }
+                    break;
+                case BROADCAST:
+                    ChatServer.receiveBroadcast(frame.string(0), unwrap(frame.bytes(1)));
+                    break;
+                case DIRECT:
+                    ChatServer.receiveDirect(frame.string(0), unwrap(frame.bytes(1)));
+                    break;
+                default:
+                    System.out.println("Ignoring cluster frame type " + frame.type + " from " + remoteId);
+            }
+        }
+
+        private void writeLoop() {
+            ByteBuffer[] batch = new ByteBuffer[64];
+            try {
+                int n;
+                while ((n = outbound.take(batch)) > 0) {
+                    int first = 0;
+                    while (first < n) {
+                        channel.write(batch, first, n - first);
+                        while (first < n && !batch[first].hasRemaining()) {
+                            batch[first++] = null;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // the reader notices too
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            outbound.close();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Splits a text-protocol line into its command type and "::"-separated fields without
+ * allocating: the line is matched against a table of prefixes and the fields are kept as
+ * offsets into it. Strings are only made for the fields a handler asks for, and Base64
+ * file data is decoded without first copying it into a String.
+ *
+ * A command splits the text after its prefix into at most a fixed number of fields, the
+ * last taking the rest of the line, exactly as split("::", limit) did. A line matching no
+ * prefix is CHAT, with the whole line as its one field. Types are FrameCodec's, plus a
+ * few that only exist on the text protocol.
+ *
+ * Lines come as Strings (from a BufferedReader) or as UTF-8 bytes in a read buffer; every
+ * prefix and separator is ASCII, which never occurs inside a multi-byte UTF-8 sequence.
+ * Not thread-safe: each reading thread reuses one parser for every line, and the line
+ * must stay unchanged until its fields have been read.
+ */
+final class CommandParser {
+    /** Client's first line: [features]. */
+    static final byte HELLO = -1;
+    /** Server to client: [roster entries], the rest of the "Online users:" line. */
+    static final byte ONLINE_USERS = -2;
+    /** Server to client: [seq, message]; message is itself a line. */
+    static final byte SEQ = -3;
+    /** Server to client, a line on its own: resuming failed, log in again. */
+    static final byte RESUME_FAILED = -4;
+
+    private static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private static final class Command {
+        final String prefix;
+        final byte type;
+        // How many fields the rest of the line splits into; 0 if the line is just the prefix
+        final int fields;
+
+        Command(String prefix, byte type, int fields) {
+            this.prefix = prefix;
+            this.type = type;
+            this.fields = fields;
+        }
+    }
+
+    // A session's first line; anything else is the username (LOGIN)
+    private static final Command[][] FIRST_LINES = byFirstChar(
+            new Command("HELLO::", HELLO, 1),
+            new Command("RESUME::", FrameCodec.RESUME, 2));
+    // Client to server after login; no prefix is a prefix of another
+    private static final Command[][] COMMANDS = byFirstChar(
+            new Command("STATUS::", FrameCodec.STATUS, 1),
+            new Command("FILE::", FrameCodec.FILE, 2),
+            new Command("FILE_OFFER::", FrameCodec.FILE_OFFER, 4),
+            new Command("FILE_BEGIN::", FrameCodec.FILE_BEGIN, 3),
+            new Command("FILE_CHUNK::", FrameCodec.FILE_CHUNK, 2),
+            new Command("FILE_END::", FrameCodec.FILE_END, 2),
+            new Command("JOIN::", FrameCodec.JOIN, 1),
+            new Command("LEAVE::", FrameCodec.LEAVE, 1),
+            new Command("ROOM::", FrameCodec.ROOM_CHAT, 2),
+            new Command("DM::", FrameCodec.DM, 2),
+            new Command("PONG::", FrameCodec.PONG, 0));
+    // Server to client
+    private static final Command[][] SERVER_LINES = byFirstChar(
+            new Command("SEQ::", SEQ, 2),
+            new Command("SESSION::", FrameCodec.SESSION, 1),
+            new Command("RESUME_FAILED", RESUME_FAILED, 0),
+            new Command("FILE_FROM::", FrameCodec.FILE_FROM, 3),
+            new Command("FILE_BEGIN::", FrameCodec.FILE_BEGIN, 4),
+            new Command("FILE_CHUNK::", FrameCodec.FILE_CHUNK, 2),
+            new Command("FILE_END::", FrameCodec.FILE_END, 2),
+            new Command("FILE_ACK::", FrameCodec.FILE_ACK, 2),
+            new Command("FILE_REF::", FrameCodec.FILE_REF, 4),
+            new Command("Online users:", ONLINE_USERS, 1),
+            new Command("PRESENCE::", FrameCodec.PRESENCE, UNLIMITED),
+            new Command("USER_EVENT::", FrameCodec.USER_EVENT, 2),
+            new Command("ROOM::", FrameCodec.ROOM_CHAT, 2),
+            new Command("ROOM_EVENT::", FrameCodec.ROOM_EVENT, 3),
+            new Command("PRIVATE::", FrameCodec.PRIVATE, 1),
+            new Command("PING", FrameCodec.PING, 0));
+    private static final Command[] NONE = new Command[0];
+
+    // The line: text, or bytes when text is null; either way it ends at end
+    private String text;
+    private byte[] bytes;
+    private int end;
+    private byte type;
+    private int fieldCount;
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    // For decoding Base64 from a String without copying it into another String
+    private byte[] scratch = new byte[0];
+
+    // The commands indexed by the first character of their prefix (all ASCII), so most chat
+    // lines are told apart from commands with one array lookup
+    private static Command[][] byFirstChar(Command... commands) {
+        Command[][] table = new Command[128][];
+        for (Command command : commands) {
+            char first = command.prefix.charAt(0);
+            Command[] same = table[first] == null ? new Command[0] : table[first];
+            table[first] = Arrays.copyOf(same, same.length + 1);
+            table[first][same.length] = command;
+        }
+        return table;
+    }
+
+    /** Parses a session's first line: HELLO, RESUME or LOGIN (the username). */
+    byte parseFirstLine(String line) {
+        return parse(FIRST_LINES, FrameCodec.LOGIN, line, null, 0, line.length());
+    }
+
+    /** Parses a client command. */
+    byte parseCommand(String line) {
+        return parse(COMMANDS, FrameCodec.CHAT, line, null, 0, line.length());
+    }
+
+    /** Parses a client command read as UTF-8 into buffer[offset..offset+length). */
+    byte parseCommand(byte[] buffer, int offset, int length) {
+        return parse(COMMANDS, FrameCodec.CHAT, null, buffer, offset, offset + length);
+    }
+
+    /** Parses a line from the server, starting at from (after a SEQ prefix, say). */
+    byte parseServerLine(String line, int from) {
+        return parse(SERVER_LINES, FrameCodec.CHAT, line, null, from, line.length());
+    }
+
+    private byte parse(Command[][] table, byte otherwise, String line, byte[] buffer, int from, int to) {
+        text = line;
+        bytes = buffer;
+        end = to;
+        char first = from < to ? charAt(from) : 0;
+        Command[] candidates = first < table.length && table[first] != null ? table[first] : NONE;
+        for (Command command : candidates) {
+            if (!startsWith(from, command.prefix)) continue;
+            int start = from + command.prefix.length();
+            if (command.fields == 0) {
+                if (start != to) continue;
+                fieldCount = 0;
+            } else {
+                split(start, command.fields);
+            }
+            type = command.type;
+            return type;
+        }
+        fieldCount = 1;
+        starts[0] = from;
+        ends[0] = to;
+        type = otherwise;
+        return type;
+    }
+
+    private boolean startsWith(int from, String prefix) {
+        if (end - from < prefix.length()) return false;
+        if (text != null) return text.startsWith(prefix, from);
+        for (int i = 0; i < prefix.length(); i++) {
+            if (charAt(from + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void split(int start, int limit) {
+        fieldCount = 0;
+        while (true) {
+            if (fieldCount == starts.length) {
+                starts = Arrays.copyOf(starts, fieldCount * 2);
+                ends = Arrays.copyOf(ends, fieldCount * 2);
+            }
+            starts[fieldCount] = start;
+            int separator = fieldCount + 1 < limit ? separator(start) : -1;
+            if (separator < 0) {
+                ends[fieldCount++] = end;
+                return;
+            }
+            ends[fieldCount++] = separator;
+            start = separator + 2;
+        }
+    }
+
+    private int separator(int from) {
+        if (text != null) return text.indexOf("::", from); // lines from Strings always end at the end
+        for (int i = from; i + 1 < end; i++) {
+            if (charAt(i) == ':' && charAt(i + 1) == ':') return i;
+        }
+        return -1;
+    }
+
+    private char charAt(int index) {
+        return text != null ? text.charAt(index) : (char) (bytes[index] & 0xff);
+    }
+
+    byte type() {
+        return type;
+    }
+
+    int fieldCount() {
+        return fieldCount;
+    }
+
+    /** Where field index starts in the line; for a String line, an index into it. */
+    int start(int index) {
+        return starts[index];
+    }
+
+    int end(int index) {
+        return ends[index];
+    }
+
+    /** The field as a String, or "" past the last field. */
+    String field(int index) {
+        if (index >= fieldCount) return "";
+        if (text != null) return text.substring(starts[index], ends[index]);
+        return new String(bytes, starts[index], ends[index] - starts[index], StandardCharsets.UTF_8);
+    }
+
+    /** True if the field is exactly value. */
+    boolean fieldEquals(int index, String value) {
+        if (index >= fieldCount || ends[index] - starts[index] != value.length()) return false;
+        for (int i = 0; i < value.length(); i++) {
+            if (charAt(starts[index] + i) != value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /** The field as a non-negative number, or -1 if it is not one. */
+    long longField(int index) {
+        if (index >= fieldCount || starts[index] == ends[index]) return -1;
+        long value = 0;
+        for (int i = starts[index]; i < ends[index]; i++) {
+            char c = charAt(i);
+            if (c < '0' || c > '9' || value > (Long.MAX_VALUE - 9) / 10) return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Decodes the field as Base64.
+     * @throws IllegalArgumentException if it is not valid Base64
+     */
+    byte[] base64Field(int index) {
+        if (index >= fieldCount) return new byte[0];
+        int length = ends[index] - starts[index];
+        ByteBuffer encoded;
+        if (text != null) {
+            if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+            byte[] ascii = scratch;
+            String line = text;
+            int start = starts[index];
+            int high = 0;
+            for (int i = 0; i < length; i++) {
+                char c = line.charAt(start + i);
+                ascii[i] = (byte) c;
+                high |= c;
+            }
+            // a character past Latin-1 is never Base64, and must not pass as its low byte
+            if (high > 0xff) throw new IllegalArgumentException("Illegal base64 character");
+            encoded = ByteBuffer.wrap(ascii, 0, length);
+        } else {
+            encoded = ByteBuffer.wrap(bytes, starts[index], length);
+        }
+        ByteBuffer decoded = Base64.getDecoder().decode(encoded);
+        byte[] data = decoded.array();
+        return decoded.remaining() == data.length ? data : Arrays.copyOf(data, decoded.remaining());
+    }
+}
@@ -0,0 +1,128 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A server-to-client message encoded exactly once per wire protocol. A broadcast hands
+ * the same instance to every recipient's outbound queue; each writer works on its own
+ * duplicate() of the read-only buffer, so nothing is re-encoded or copied per recipient.
+ * Clients on another protocol (binary frames, or with sequence numbers) get a sibling
+ * instance holding that encoding, which is likewise built once and shared.
+ */
+final class EncodedMessage {
+    /** Protocol bit: binary frames rather than text lines. */
+    static final int BINARY = 1;
+    /** Protocol bit: with the message's sequence number (FLAG_SEQ, or a "SEQ::n::" prefix). */
+    static final int SEQUENCED = 2;
+
+    // Small messages stay on the heap: allocating and freeing direct memory costs more than
+    // the copy the channel makes. Big ones (file frames) go off-heap.
+    private static final int DIRECT_THRESHOLD = 8192;
+
+    private final byte type;
+    private final Object[] fields;
+    private final int protocol;
+    private final boolean presence;
+    private final ByteBuffer bytes;
+    // Shared by all encodings of one message
+    private final Family family;
+
+    /** The encodings of one message, built on first use, and its sequence number. */
+    private static final class Family {
+        final AtomicReferenceArray<EncodedMessage> byProtocol = new AtomicReferenceArray<>(4);
+        // set once, before the message is handed to any client
+        volatile long seq = -1;
+    }
+
+    private EncodedMessage(byte type, Object[] fields, int protocol, boolean presence, Family family) {
+        this.type = type;
+        this.fields = fields;
+        this.protocol = protocol;
+        this.presence = presence;
+        this.family = family;
+        long seq = (protocol & SEQUENCED) != 0 ? family.seq : -1;
+        byte[] encoded;
+        if ((protocol & BINARY) != 0) {
+            encoded = FrameCodec.encode(type, seq, fields);
+        } else {
+            String line = FrameCodec.toText(type, fields);
+            encoded = ((seq >= 0 ? "SEQ::" + seq + "::" + line : line) + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        ByteBuffer buffer;
+        if (encoded.length >= DIRECT_THRESHOLD) {
+            buffer = ByteBuffer.allocateDirect(encoded.length);
+            buffer.put(encoded).flip();
+        } else {
+            buffer = ByteBuffer.wrap(encoded);
+        }
+        this.bytes = buffer.asReadOnlyBuffer();
+        family.byProtocol.compareAndSet(protocol, null, this);
+    }
+
+    /** A plain text-protocol line (binary clients get it wrapped in a LINE frame). */
+    static EncodedMessage of(String line) {
+        return new EncodedMessage(FrameCodec.LINE, new Object[]{line}, 0, isPresence(line), new Family());
+    }
+
+    /**
+     * A typed message; fields as documented on the FrameCodec type constants. Raw byte
+     * fields (file data from a binary client) are encoded as a frame first, so they are
+     * only Base64 encoded if a text client actually receives them.
+     */
+    static EncodedMessage frame(byte type, Object... fields) {
+        boolean hasBytes = false;
+        for (Object field : fields) hasBytes |= field instanceof byte[];
+        boolean presence = type == FrameCodec.USER_EVENT || type == FrameCodec.ROOM_EVENT;
+        return new EncodedMessage(type, fields, hasBytes ? BINARY : 0, presence, new Family());
+    }
+
+    static boolean isPresence(String line) {
+        return line.startsWith("Online users:") || line.startsWith("USER_EVENT::");
+    }
+
+    /**
+     * Gives the message its sequence number. Must be called before the message is sent to
+     * anyone, and at most once.
+     */
+    EncodedMessage sequenced(long seq) {
+        family.seq = seq;
+        return this;
+    }
+
+    /** This message encoded for the given protocol bits; SEQUENCED is ignored if it has no number. */
+    EncodedMessage forProtocol(int wanted) {
+        if (family.seq < 0) wanted &= ~SEQUENCED;
+        if (wanted == protocol) return this;
+        EncodedMessage other = family.byProtocol.get(wanted);
+        if (other == null) {
+            // a racing thread may encode it too; whichever registers first is shared
+            new EncodedMessage(type, fields, wanted, presence, family);
+            other = family.byProtocol.get(wanted);
+        }
+        return other;
+    }
+
+    /**
+     * True for full roster lines and user and room events, which are informational and
+     * superseded by a later roster. These are the messages a slow client may lose, and they
+     * are not kept in room history. PRESENCE deltas are not included: dropping one would
+     * leave the client's list wrong.
+     */
+    boolean isPresence() {
+        return presence;
+    }
+
+    /** The FrameCodec type; LINE for plain text lines. */
+    byte type() {
+        return type;
+    }
+
+    /** A fresh view of the bytes with its own position, for one writer. */
+    ByteBuffer buffer() {
+        return bytes.duplicate();
+    }
+
+    int size() {
+        return bytes.remaining();
+    }
+}
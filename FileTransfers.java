@@ -0,0 +1,268 @@
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongConsumer;
+
+/**
+ * Received files, each shown as a row with Save and Dismiss buttons and a progress bar
+ * instead of a modal dialog. File contents never reach the EDT: a file that arrives inline
+ * is decoded straight into a temp file on a transfer thread, and saving (a move or a
+ * download) runs there too. The methods taking file contents may be called from any thread.
+ */
+class FileTransfers extends JPanel {
+    /** Writes a received file's content into the temp file it is spooled to. */
+    interface Source {
+        void writeTo(FileChannel file) throws IOException;
+    }
+
+    /** Saves a received file to the location the user accepted, reporting bytes written. */
+    interface Saver {
+        void saveTo(Path target, LongConsumer progress) throws IOException;
+    }
+
+    private final Path downloads;
+    private final ExecutorService worker = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "file-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    FileTransfers(Path downloads) {
+        this.downloads = downloads;
+        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+        setOpaque(false);
+        setVisible(false);
+    }
+
+    /** Decodes Base64 text from text.charAt(from) on, reading the string in place. */
+    static Source base64(String text, int from) {
+        return file -> copy(Base64.getDecoder().wrap(new InputStream() {
+            private int next = from;
+
+            @Override
+            public int read() {
+                return next < text.length() ? text.charAt(next++) : -1;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                if (next >= text.length()) return length == 0 ? 0 : -1;
+                int n = Math.min(length, text.length() - next);
+                for (int i = 0; i < n; i++) buffer[offset + i] = (byte) text.charAt(next++);
+                return n;
+            }
+        }), file);
+    }
+
+    static Source bytes(byte[] data) {
+        return file -> {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) file.write(buffer);
+        };
+    }
+
+    private static void copy(InputStream in, FileChannel file) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        long n;
+        while ((n = file.transferFrom(source, file.position(), Long.MAX_VALUE)) > 0) {
+            file.position(file.position() + n);
+        }
+    }
+
+    /**
+     * A file whose content is in memory: it is written to a temp file on a transfer thread
+     * (the caller's reference to the content is then the last one) and offered when done.
+     */
+    void receive(String sender, String filename, long size, Source source) {
+        Transfer transfer = new Transfer(sender, filename, size);
+        SwingUtilities.invokeLater(transfer::show);
+        worker.execute(() -> {
+            Path temp = null;
+            try {
+                temp = Files.createTempFile("chat-transfer-", ".part");
+                try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    source.writeTo(file);
+                }
+                Path spooled = temp;
+                SwingUtilities.invokeLater(() -> transfer.ready(move(spooled), () -> delete(spooled)));
+            } catch (IOException e) {
+                if (temp != null) delete(temp);
+                SwingUtilities.invokeLater(() -> transfer.failed("Could not receive: " + e.getMessage()));
+            }
+        });
+    }
+
+    /** A file already received into a temp file. */
+    void receive(String sender, String filename, Path temp) {
+        Transfer transfer = new Transfer(sender, filename, temp.toFile().length());
+        SwingUtilities.invokeLater(() -> {
+            transfer.show();
+            transfer.ready(move(temp), () -> delete(temp));
+        });
+    }
+
+    /** A file that is only fetched (by saver, on a transfer thread) if the user saves it. */
+    void offer(String sender, String filename, long size, Saver saver) {
+        Transfer transfer = new Transfer(sender, filename, size);
+        SwingUtilities.invokeLater(() -> {
+            transfer.show();
+            transfer.ready(saver, () -> {});
+        });
+    }
+
+    private static Saver move(Path temp) {
+        return (target, progress) -> Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void delete(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            System.out.println("Failed to remove " + temp + ": " + e.getMessage());
+        }
+    }
+
+    private static String formatSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    /** One received file and its row. Apart from the constructor, EDT only. */
+    private final class Transfer {
+        final String sender;
+        final String filename;
+        final long size;
+        JLabel label;
+        JProgressBar progress;
+        JButton save;
+        JButton dismiss;
+        JPanel row;
+        // Set once the content is available; discard runs if the file is dismissed unsaved
+        Saver saver;
+        Runnable discard;
+        boolean saving;
+        boolean dismissed;
+
+        Transfer(String sender, String filename, long size) {
+            this.sender = sender;
+            this.filename = filename;
+            this.size = size;
+        }
+
+        void show() {
+            label = new JLabel(sender + " sent " + filename + (size >= 0 ? " (" + formatSize(size) + ")" : ""));
+            progress = new JProgressBar();
+            progress.setIndeterminate(true);
+            progress.setString("Receiving...");
+            progress.setStringPainted(true);
+            progress.setPreferredSize(new Dimension(140, progress.getPreferredSize().height));
+            save = new JButton("Save");
+            save.setEnabled(false);
+            save.addActionListener(e -> save());
+            dismiss = new JButton("Dismiss");
+            dismiss.addActionListener(e -> dismiss());
+            JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT, 4, 0));
+            buttons.setOpaque(false);
+            buttons.add(progress);
+            buttons.add(save);
+            buttons.add(dismiss);
+            row = new JPanel(new BorderLayout(6, 0));
+            row.setOpaque(false);
+            row.setBorder(BorderFactory.createEmptyBorder(2, 0, 2, 0));
+            row.add(label, BorderLayout.CENTER);
+            row.add(buttons, BorderLayout.EAST);
+            add(row);
+            setVisible(true);
+            revalidate();
+        }
+
+        void ready(Saver saver, Runnable discard) {
+            if (dismissed) {
+                discard.run();
+                return;
+            }
+            this.saver = saver;
+            this.discard = discard;
+            progress.setIndeterminate(false);
+            progress.setString("Ready");
+            save.setEnabled(true);
+        }
+
+        void failed(String message) {
+            saving = false;
+            progress.setIndeterminate(false);
+            progress.setValue(0);
+            progress.setString("Failed");
+            label.setText(filename + ": " + message);
+            save.setEnabled(false);
+            dismiss.setEnabled(true);
+        }
+
+        void save() {
+            Path target = downloads.resolve(filename);
+            Saver current = saver;
+            saver = null;
+            saving = true;
+            save.setEnabled(false);
+            dismiss.setEnabled(false);
+            progress.setString("Saving...");
+            progress.setIndeterminate(size <= 0);
+            progress.setMaximum(1000);
+            worker.execute(() -> {
+                try {
+                    Files.createDirectories(target.getParent());
+                    current.saveTo(target, new LongConsumer() {
+                        private int shown = -1;
+
+                        @Override
+                        public void accept(long done) {
+                            // at most one EDT update per 0.1% of the file
+                            int permille = size > 0 ? (int) Math.min(1000, done * 1000 / size) : 0;
+                            if (permille == shown) return;
+                            shown = permille;
+                            SwingUtilities.invokeLater(() -> progress.setValue(permille));
+                        }
+                    });
+                    SwingUtilities.invokeLater(() -> saved(target));
+                } catch (IOException e) {
+                    discard.run();
+                    SwingUtilities.invokeLater(() -> failed("Failed to save file: " + e.getMessage()));
+                }
+            });
+        }
+
+        void saved(Path target) {
+            saving = false;
+            progress.setIndeterminate(false);
+            progress.setValue(progress.getMaximum());
+            progress.setString("Saved");
+            label.setText("Saved to: " + target);
+            save.setEnabled(false);
+            dismiss.setEnabled(true);
+        }
+
+        void dismiss() {
+            if (saving) return;
+            dismissed = true;
+            if (saver != null) discard.run();
+            saver = null;
+            remove(row);
+            if (getComponentCount() == 0) setVisible(false);
+            revalidate();
+            repaint();
+        }
+    }
+}
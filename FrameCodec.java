@@ -0,0 +1,286 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Length-prefixed binary framing shared by ChatServer and ChatClient. Each frame is
+ *
+ *   type (1 byte) | flags (1 byte) | payload length (4 bytes, big-endian) | payload
+ *
+ * and the payload is a sequence of fields, each a 4-byte length followed by that many
+ * bytes: UTF-8 for text, raw bytes for file data. Unlike the text protocol, fields may
+ * contain "::" and newlines, and files travel without Base64.
+ *
+ * Negotiation: a server that understands HELLO says so in its username prompt (PROMPT,
+ * which older servers send without the HELLO_PROMPT_SUFFIX). Only then does the client
+ * send HELLO::binary (plus any other features) and wait for the server's HELLO_OK:: line
+ * before sending anything else; an older server would take the HELLO line for a username. If HELLO_OK lists binary, both sides switch to frames and the client logs in with
+ * a LOGIN frame; otherwise they carry on with text lines.
+ *
+ * A frame with FLAG_SEQ set carries the message's sequence number as an extra leading
+ * 8-byte field, which is not counted in Frame.fieldCount(). Only clients that negotiated
+ * resume get such frames.
+ */
+final class FrameCodec {
+    /** A text-protocol line carried as is: [line]. Used for system messages and rosters. */
+    static final byte LINE = 0;
+    /** Client login: [username]. */
+    static final byte LOGIN = 1;
+    /** Client to server: [text]. Server to client: [sender, text]. */
+    static final byte CHAT = 2;
+    /** Client to server: [recipient, text]. */
+    static final byte DM = 3;
+    /** Server to client: [sender, text]. */
+    static final byte PRIVATE = 4;
+    /** Client to server: [status]. */
+    static final byte STATUS = 5;
+    /** Client to server: [filename, data]. */
+    static final byte FILE = 6;
+    /** Server to client: [sender, filename, data]. */
+    static final byte FILE_FROM = 7;
+    /** Server to client: [action, username]. */
+    static final byte USER_EVENT = 8;
+    /** Server to client: [op, arg, op, arg, ...] as in the text PRESENCE:: frame. */
+    static final byte PRESENCE = 9;
+    /** Client to server: [transferId, size, filename]. Server to client: [sender, transferId, size, filename]. */
+    static final byte FILE_BEGIN = 10;
+    /** [transferId, data]: the next piece of a streamed file, at most FILE_CHUNK_SIZE bytes. */
+    static final byte FILE_CHUNK = 11;
+    /** [transferId] once the file is complete, or [transferId, "aborted"]. */
+    static final byte FILE_END = 12;
+    /** Client to server: [transferId, size, sha256, filename]; the server answers with FILE_ACK. */
+    static final byte FILE_OFFER = 13;
+    /** Server to client: [transferId, result], result being upload, stored or rejected. */
+    static final byte FILE_ACK = 14;
+    /** Server to client: [sender, sha256, size, filename]; the bytes are fetched from the blob port. */
+    static final byte FILE_REF = 15;
+    /** Client to server instead of LOGIN: [sessionToken, lastSeq]. */
+    static final byte RESUME = 16;
+    /** Server to client after login or resume: [sessionToken]. */
+    static final byte SESSION = 17;
+    /** Client to server: [room]. */
+    static final byte JOIN = 18;
+    /** Client to server: [room]. */
+    static final byte LEAVE = 19;
+    /** Client to server: [room, text]. Server to room members: [room, sender, text]. */
+    static final byte ROOM_CHAT = 20;
+    /** Server to room members: [action, room, username], action being joined or left. */
+    static final byte ROOM_EVENT = 21;
+    /** Server to client, no fields: answer with PONG. Only sent to clients that sent HELLO::heartbeat. */
+    static final byte PING = 22;
+    /** Client to server, no fields: the answer to PING. "PONG::" as a text line, so "PONG" is still chat. */
+    static final byte PONG = 23;
+
+    /** Flag bit: the payload starts with an 8-byte sequence number field. */
+    static final byte FLAG_SEQ = 1;
+
+    /** The server's first line; older servers send it without the suffix. */
+    static final String PROMPT = "Enter your username:";
+    static final String HELLO_PROMPT_SUFFIX = " (HELLO accepted)";
+
+    static final int HEADER_SIZE = 6;
+    static final int MAX_PAYLOAD = 64 * 1024 * 1024;
+    // 48 KiB is exactly 64 KiB of Base64 on the text protocol
+    static final int FILE_CHUNK_SIZE = 48 * 1024;
+
+    private FrameCodec() {
+    }
+
+    /** A decoded frame; fields are kept as bytes and converted on access. */
+    static final class Frame {
+        final byte type;
+        final byte flags;
+        /** The sequence number if FLAG_SEQ is set, otherwise -1. */
+        final long seq;
+        private final byte[][] fields;
+
+        Frame(byte type, byte flags, long seq, byte[][] fields) {
+            this.type = type;
+            this.flags = flags;
+            this.seq = seq;
+            this.fields = fields;
+        }
+
+        int fieldCount() {
+            return fields.length;
+        }
+
+        String string(int index) {
+            return index < fields.length ? new String(fields[index], StandardCharsets.UTF_8) : "";
+        }
+
+        byte[] bytes(int index) {
+            return index < fields.length ? fields[index] : new byte[0];
+        }
+
+        /** All fields as text, for re-encoding a message that carries no file data. */
+        Object[] strings() {
+            Object[] strings = new Object[fields.length];
+            for (int i = 0; i < fields.length; i++) strings[i] = string(i);
+            return strings;
+        }
+    }
+
+    /**
+     * Encodes a frame. Fields may be Strings (sent as UTF-8) or byte arrays; for FILE,
+     * FILE_FROM and FILE_CHUNK a String data field is taken to be Base64 from the text protocol and is
+     * decoded so the frame carries raw bytes.
+     */
+    static byte[] encode(byte type, Object... fields) {
+        return encode(type, -1, fields);
+    }
+
+    /** Like encode, with FLAG_SEQ and the given sequence number if it is not negative. */
+    static byte[] encode(byte type, long seq, Object[] fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int payload = 0;
+        for (int i = 0; i < fields.length; i++) {
+            Object field = fields[i];
+            if (field instanceof byte[]) {
+                encoded[i] = (byte[]) field;
+            } else if (isFileData(type, i)) {
+                encoded[i] = Base64.getDecoder().decode((String) field);
+            } else {
+                encoded[i] = String.valueOf(field).getBytes(StandardCharsets.UTF_8);
+            }
+            payload += 4 + encoded[i].length;
+        }
+        if (seq >= 0) payload += 4 + 8;
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload);
+        frame.put(type).put(seq >= 0 ? FLAG_SEQ : 0).putInt(payload);
+        if (seq >= 0) frame.putInt(8).putLong(seq);
+        for (byte[] field : encoded) {
+            frame.putInt(field.length).put(field);
+        }
+        return frame.array();
+    }
+
+    private static boolean isFileData(byte type, int index) {
+        return (type == FILE && index == 1) || (type == FILE_FROM && index == 2) || (type == FILE_CHUNK && index == 1);
+    }
+
+    /**
+     * The same server-to-client message as a text-protocol line, without the newline. File
+     * data given as bytes is Base64 encoded.
+     */
+    static String toText(byte type, Object[] fields) {
+        switch (type) {
+            case CHAT:
+                return fields[0] + ": " + fields[1];
+            case PRIVATE:
+                return "PRIVATE::" + fields[0] + ": " + fields[1];
+            case FILE_FROM:
+                return "FILE_FROM::" + fields[0] + "::" + fields[1] + "::" + base64(fields[2]);
+            case FILE_CHUNK:
+                return "FILE_CHUNK::" + fields[0] + "::" + base64(fields[1]);
+            case FILE_BEGIN:
+            case FILE_END:
+            case FILE_ACK:
+            case FILE_REF:
+            case SESSION: {
+                StringBuilder line = new StringBuilder(textName(type));
+                for (Object field : fields) line.append("::").append(field);
+                return line.toString();
+            }
+            case USER_EVENT:
+                return "USER_EVENT::" + fields[0] + "::" + fields[1];
+            case ROOM_CHAT:
+                return "ROOM::" + fields[0] + "::" + fields[1] + ": " + fields[2];
+            case ROOM_EVENT:
+                return "ROOM_EVENT::" + fields[0] + "::" + fields[1] + "::" + fields[2];
+            case PING:
+                return "PING";
+            case PRESENCE: {
+                StringBuilder line = new StringBuilder("PRESENCE");
+                for (Object field : fields) line.append("::").append(field);
+                return line.toString();
+            }
+            default:
+                return String.valueOf(fields[0]);
+        }
+    }
+
+    private static String textName(byte type) {
+        switch (type) {
+            case FILE_BEGIN: return "FILE_BEGIN";
+            case FILE_END: return "FILE_END";
+            case FILE_ACK: return "FILE_ACK";
+            case SESSION: return "SESSION";
+            default: return "FILE_REF";
+        }
+    }
+
+    private static String base64(Object data) {
+        return data instanceof byte[] ? Base64.getEncoder().encodeToString((byte[]) data) : (String) data;
+    }
+
+    /**
+     * Reads one frame from a blocking stream.
+     * @return the frame, or null if the stream ended cleanly before a new frame
+     */
+    static Frame read(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) return null;
+        byte flags = in.readByte();
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return parse((byte) type, flags, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Decodes one frame from the front of a buffer in read mode.
+     * @return the frame, or null if the buffer does not hold a whole frame yet (nothing is consumed)
+     */
+    static Frame decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) return null;
+        int start = buffer.position();
+        int length = buffer.getInt(start + 2);
+        checkLength(length);
+        if (buffer.remaining() < HEADER_SIZE + length) return null;
+        byte type = buffer.get(start);
+        byte flags = buffer.get(start + 1);
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + length);
+        buffer.position(start + HEADER_SIZE + length);
+        return parse(type, flags, payload);
+    }
+
+    /** Size of the frame starting at the buffer's position, once its header has arrived; -1 before. */
+    static int frameSize(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) return -1;
+        int length = buffer.getInt(buffer.position() + 2);
+        checkLength(length);
+        return HEADER_SIZE + length;
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    private static Frame parse(byte type, byte flags, ByteBuffer payload) throws IOException {
+        int count = 0;
+        for (int p = payload.position(); p < payload.limit(); count++) {
+            if (payload.limit() - p < 4) throw new IOException("Truncated frame field");
+            int length = payload.getInt(p);
+            if (length < 0 || length > payload.limit() - p - 4) throw new IOException("Invalid frame field length " + length);
+            p += 4 + length;
+        }
+        long seq = -1;
+        if ((flags & FLAG_SEQ) != 0) {
+            if (count == 0 || payload.getInt() != 8) throw new IOException("Invalid sequence number field");
+            seq = payload.getLong();
+            count--;
+        }
+        byte[][] fields = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            fields[i] = new byte[payload.getInt()];
+            payload.get(fields[i]);
+        }
+        return new Frame(type, flags, seq, fields);
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One timer thread for any number of timeouts, as in Varghese and Lauck's hashed timing
+ * wheel. Time is cut into ticks and a timeout is filed in the slot its deadline falls in,
+ * wrapping around the wheel with a count of the whole turns still to wait. Scheduling and
+ * cancelling are O(1), and each tick only looks at one slot however many timeouts are
+ * pending, so a timeout per session costs next to nothing even with 100k sessions.
+ *
+ * Deadlines are rounded up to the next tick, so a timeout fires up to one tick late.
+ * Tasks run on the timer thread, one after another, and must not block.
+ */
+final class HashedTimerWheel {
+    /** A scheduled task. */
+    static final class Timeout {
+        private final Runnable task;
+        // Nanoseconds after the wheel started
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /** Keeps the task from running; it leaves the wheel when its slot next comes round. */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final long startTime = System.nanoTime();
+    // Touched only by the timer thread
+    private final ArrayDeque<Timeout>[] slots;
+    private final int mask;
+    private long tick;
+    // Scheduled from other threads, filed into slots on the next tick
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param tickMillis the timer's resolution
+     * @param slotCount  slots in the wheel, rounded up to a power of two; a wheel turn is
+     *                   ideally about as long as the usual timeout
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    HashedTimerWheel(String name, long tickMillis, int slotCount) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.slots = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) slots[i] = new ArrayDeque<>();
+        this.mask = size - 1;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Runs task on the timer thread after the delay. Any thread. */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            // sleep until the end of the current tick, then run what is due by then
+            long end = tickNanos * (tick + 1);
+            long now;
+            while ((now = System.nanoTime() - startTime) < end) {
+                LockSupport.parkNanos(end - now);
+            }
+            fileAdded();
+            expire(slots[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void fileAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) continue;
+            long dueTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (dueTick - tick) / slots.length;
+            slots[(int) (dueTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> slot) {
+        for (int n = slot.size(); n > 0; n--) {
+            Timeout timeout = slot.poll();
+            if (timeout.cancelled) continue;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                slot.add(timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                System.out.println("Timer task failed: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+}
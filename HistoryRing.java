@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last N broadcast messages of one room, kept encoded so a joining client's backlog is
+ * N shared buffers and no work. Neither side locks: a writer claims a position with one
+ * getAndIncrement, and each slot records which position it holds, so a reader simply skips
+ * a slot that is being overwritten.
+ */
+class HistoryRing {
+    private static final class Entry {
+        final long position;
+        final EncodedMessage message;
+
+        Entry(long position, EncodedMessage message) {
+            this.position = position;
+            this.message = message;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLong next = new AtomicLong();
+
+    HistoryRing(int capacity) {
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /** The retained messages, oldest first, and the position just after the last of them. */
+    static final class Snapshot {
+        final List<EncodedMessage> messages;
+        final long end;
+
+        Snapshot(List<EncodedMessage> messages, long end) {
+            this.messages = messages;
+            this.end = end;
+        }
+    }
+
+    /** @return the message's position, which increases by one per message */
+    long add(EncodedMessage message) {
+        long position = next.getAndIncrement();
+        slots.set((int) (position % slots.length()), new Entry(position, message));
+        return position;
+    }
+
+    Snapshot snapshot() {
+        long end = next.get();
+        long start = Math.max(0, end - slots.length());
+        List<EncodedMessage> messages = new ArrayList<>((int) (end - start));
+        for (long position = start; position < end; position++) {
+            Entry entry = slots.get((int) (position % slots.length()));
+            if (entry == null || entry.position < position) {
+                // claimed but not written yet: the snapshot ends here, so every later message counts as new
+                end = position;
+                break;
+            }
+            // a newer position means a writer lapped us; that message is gone from the ring
+            if (entry.position == position) {
+                messages.add(entry.message);
+            }
+        }
+        return new Snapshot(messages, end);
+    }
+}
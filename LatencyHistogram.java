@@ -0,0 +1,87 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size latency histogram in the style of HdrHistogram: values below 2048 get a
+ * counter each, and every power-of-two range above that is split into 1024 equal counters,
+ * so any recorded value is known to three significant digits however large it is. Recording
+ * may be done from any number of threads at once without contending on a shared word: each
+ * counter is a LongAdder, which splits into per-thread cells only if it is contended, and
+ * the total is summed when read rather than kept.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 11;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    private final long highestTrackable;
+    private final LongAdder[] counts;
+    // Writes only when a value is a new maximum
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /** @param highestTrackable larger values are recorded as this */
+    LatencyHistogram(long highestTrackable) {
+        this.highestTrackable = Math.max(SUB_BUCKET_COUNT, highestTrackable);
+        this.counts = new LongAdder[index(this.highestTrackable) + 1];
+        for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+    }
+
+    private static int bucket(long value) {
+        return Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+    }
+
+    private static int index(long value) {
+        int bucket = bucket(value);
+        if (bucket == 0) return (int) value;
+        int sub = (int) (value >>> bucket);
+        return SUB_BUCKET_COUNT + (bucket - 1) * SUB_BUCKET_HALF + (sub - SUB_BUCKET_HALF);
+    }
+
+    // The largest value that shares a counter with the index
+    private static long highestEquivalent(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int bucket = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return (sub << bucket) + (1L << bucket) - 1;
+    }
+
+    /** Records a value; negative values count as 0. */
+    void record(long value) {
+        value = Math.min(Math.max(0, value), highestTrackable);
+        counts[index(value)].increment();
+        max.accumulate(value);
+    }
+
+    long count() {
+        long total = 0;
+        for (LongAdder count : counts) total += count.sum();
+        return total;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the value at or below which that share of recordings fall, to three
+     *         significant digits; 0 if nothing was recorded
+     */
+    long valueAtPercentile(double percentile) {
+        // one pass to copy the counters, so the total and the walk agree under concurrent recording
+        long[] snapshot = new long[counts.length];
+        long recorded = 0;
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+            recorded += snapshot[i];
+        }
+        if (recorded == 0) return 0;
+        long wanted = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * recorded));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= wanted) return Math.min(highestEquivalent(i), max.get());
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,400 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load test: opens many text-protocol clients against a ChatServer on this
+ * machine, logs them all in, then has each send a mix of broadcasts, DMs, status changes
+ * and files at a fixed rate, and reports throughput and delivery latency percentiles.
+ *
+ *   java LoadGenerator [port] --clients=1000 --rate=1 --duration=30 --warmup=5
+ *                      --mix=chat:70,dm:20,status:8,file:2 --file-bytes=4096
+ *
+ * With --ramp=STEP it instead adds STEP clients at a time, up to --clients, measuring
+ * after each step, and stops at the first step the server cannot log in completely: the
+ * way to compare the most connections and the p99 broadcast latency of --mode=blocking
+ * (platform threads) and --mode=virtual. Run the server with --max-connections=0 and
+ * --idle-timeout=0 for that, so neither limit is what stops the ramp.
+ *
+ * Every message carries the time it was due to be sent ("lg@" + System.nanoTime()), and
+ * each client that receives it records now minus that time. Timing from when a message
+ * was due rather than when it went out keeps a stalled server from hiding its own delay
+ * (coordinated omission): a sender held up by a full socket still stamps the messages it
+ * falls behind on with their planned times. Senders and receivers share one JVM, so the
+ * clocks agree; that is also why only loopback addresses are accepted.
+ */
+public class LoadGenerator {
+    private static final String MARK = "lg@";
+    // One hour in nanoseconds; anything slower is recorded as that
+    private static final long HIGHEST_LATENCY = TimeUnit.HOURS.toNanos(1);
+    private static final String[] STATUSES = {"Online", "Away", "Busy"};
+
+    private static String host = "localhost";
+    private static int port = 1234;
+    private static int clientCount = 1000;
+    private static double rate = 1;
+    private static int durationSeconds = 30;
+    private static int warmupSeconds = 5;
+    private static int fileBytes = 4096;
+    // chat, dm, status, file
+    private static int[] mix = {70, 20, 8, 2};
+    // Clients added per step with --ramp; 0 for a single run
+    private static int rampStep;
+
+    // Replaced for every ramp step
+    private static volatile LatencyHistogram latency = new LatencyHistogram(HIGHEST_LATENCY);
+    private static final LongAdder[] sent = {new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()};
+    // Every stamped message received, measured or not, to tell when delivery has caught up
+    private static final LongAdder arrivals = new LongAdder();
+    private static final AtomicInteger loggedIn = new AtomicInteger();
+    private static final AtomicInteger disconnected = new AtomicInteger();
+    private static final List<Client> clients = new ArrayList<>();
+    // Only messages due in [measureStart, measureEnd) are counted
+    private static volatile long measureStart = Long.MAX_VALUE;
+    private static volatile long measureEnd = Long.MAX_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        for (String arg : args) {
+            try {
+                if (arg.startsWith("--host=")) {
+                    host = arg.substring("--host=".length()).trim();
+                } else if (arg.startsWith("--clients=")) {
+                    clientCount = Math.max(1, Integer.parseInt(arg.substring("--clients=".length()).trim()));
+                } else if (arg.startsWith("--rate=")) {
+                    rate = Double.parseDouble(arg.substring("--rate=".length()).trim());
+                } else if (arg.startsWith("--duration=")) {
+                    durationSeconds = Math.max(1, Integer.parseInt(arg.substring("--duration=".length()).trim()));
+                } else if (arg.startsWith("--warmup=")) {
+                    warmupSeconds = Math.max(0, Integer.parseInt(arg.substring("--warmup=".length()).trim()));
+                } else if (arg.startsWith("--file-bytes=")) {
+                    fileBytes = Math.max(1, Integer.parseInt(arg.substring("--file-bytes=".length()).trim()));
+                } else if (arg.startsWith("--ramp=")) {
+                    rampStep = Math.max(1, Integer.parseInt(arg.substring("--ramp=".length()).trim()));
+                } else if (arg.startsWith("--mix=")) {
+                    mix = parseMix(arg.substring("--mix=".length()));
+                } else {
+                    port = Integer.parseInt(arg);
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid argument '" + arg + "': " + e.getMessage());
+                return;
+            }
+        }
+        if (rate <= 0) {
+            System.out.println("--rate must be positive");
+            return;
+        }
+        InetAddress address;
+        try {
+            address = InetAddress.getByName(host);
+        } catch (IOException e) {
+            System.out.println("Unknown host " + host);
+            return;
+        }
+        if (!address.isLoopbackAddress()) {
+            System.out.println("Refusing to load " + host + ": the load generator only targets this machine");
+            return;
+        }
+
+        String run = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+        ExecutorService readers = ChatServer.newVirtualThreadExecutor();
+        byte[] file = new byte[fileBytes];
+        ThreadLocalRandom.current().nextBytes(file);
+        String fileData = Base64.getEncoder().encodeToString(file);
+        if (rampStep > 0) {
+            ramp(address, run, readers, fileData);
+            System.exit(0);
+        }
+
+        System.out.println("Connecting " + clientCount + " clients to " + address.getHostAddress() + ":" + port + "...");
+        connect(address, run, clientCount, readers);
+        System.out.println(loggedIn.get() + " of " + clientCount + " clients logged in");
+        if (loggedIn.get() == 0) {
+            System.exit(1);
+        }
+        List<Client> active = active();
+        System.out.println("Warming up for " + warmupSeconds + " s, then measuring for " + durationSeconds + " s");
+        measure(active, fileData);
+        report(active.size());
+        for (Client client : clients) {
+            client.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Adds rampStep clients at a time and measures each step, printing one row per step.
+     * Stops at the first step where not every client logged in (refused, timed out or out
+     * of threads), or at --clients.
+     */
+    private static void ramp(InetAddress address, String run, ExecutorService readers, String fileData) throws Exception {
+        System.out.println("Ramping to " + clientCount + " clients in steps of " + rampStep + " against "
+                + address.getHostAddress() + ":" + port + ", " + durationSeconds + " s per step");
+        System.out.println("clients  logged in  delivered        p50 ms     p99 ms     max ms");
+        int handled = 0;
+        while (clients.size() < clientCount) {
+            int target = Math.min(clientCount, clients.size() + rampStep);
+            connect(address, run, target - clients.size(), readers);
+            List<Client> active = active();
+            if (active.size() < target) {
+                System.out.println(target + " clients: only " + active.size() + " logged in, stopping");
+                break;
+            }
+            latency = new LatencyHistogram(HIGHEST_LATENCY);
+            for (LongAdder count : sent) count.reset();
+            measure(active, fileData);
+            long expected = (sent[0].sum() + sent[3].sum()) * active.size() + sent[1].sum() * 2;
+            System.out.printf("%7d  %9d  %9d/%-9d %8s  %9s  %9s%n", target, active.size(), latency.count(), expected,
+                    millis(latency.valueAtPercentile(50)), millis(latency.valueAtPercentile(99)), millis(latency.max()));
+            handled = target;
+        }
+        System.out.println("Most clients with every one logged in: " + handled);
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    /** Connects count more clients and waits (up to 60 s) until each has logged in or failed. */
+    private static void connect(InetAddress address, String run, int count, ExecutorService readers) throws InterruptedException {
+        CountDownLatch handshakes = new CountDownLatch(count);
+        int first = clients.size();
+        for (int i = first; i < first + count; i++) {
+            Client client = new Client("load" + run + "-" + i, handshakes);
+            try {
+                client.connect(new InetSocketAddress(address, port));
+            } catch (IOException e) {
+                System.out.println("Client " + i + " could not connect: " + e.getMessage());
+                handshakes.countDown();
+                continue;
+            }
+            clients.add(client);
+            readers.execute(client::readLoop);
+        }
+        if (!handshakes.await(60, TimeUnit.SECONDS)) {
+            System.out.println("Timed out waiting for logins");
+        }
+    }
+
+    private static List<Client> active() {
+        List<Client> active = new ArrayList<>();
+        for (Client client : clients) {
+            if (client.username != null && !client.socket.isClosed()) active.add(client);
+        }
+        return active;
+    }
+
+    /**
+     * Has every active client send at the configured rate through a warmup and the
+     * measured window, then waits for the server to finish delivering.
+     */
+    private static void measure(List<Client> active, String fileData) throws InterruptedException {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureEnd = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+        for (Client client : active) {
+            // spread the clients over the interval so they do not all send at once
+            long offset = ThreadLocalRandom.current().nextLong(interval);
+            client.due = start + offset;
+            senders.scheduleAtFixedRate(() -> client.sendNext(active, interval, fileData), offset, interval, TimeUnit.NANOSECONDS);
+        }
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(measureEnd - System.nanoTime()));
+        senders.shutdownNow();
+        // let a backed-up server finish delivering: wait until a second passes without any
+        // delivery, for at most 30 s
+        long last = -1;
+        for (int waited = 0; waited < 30 && arrivals.sum() != last; waited++) {
+            last = arrivals.sum();
+            Thread.sleep(1000);
+        }
+    }
+
+    // "chat:70,dm:20,status:8,file:2"; kinds left out get weight 0
+    private static int[] parseMix(String text) {
+        int[] weights = new int[4];
+        for (String part : text.split(",")) {
+            String[] kv = part.split(":", 2);
+            int weight = kv.length == 2 ? Integer.parseInt(kv[1].trim()) : 1;
+            switch (kv[0].trim().toLowerCase()) {
+                case "chat": weights[0] = weight; break;
+                case "dm": weights[1] = weight; break;
+                case "status": weights[2] = weight; break;
+                case "file": weights[3] = weight; break;
+                default: throw new IllegalArgumentException("unknown message kind " + kv[0]);
+            }
+        }
+        if (weights[0] + weights[1] + weights[2] + weights[3] <= 0) {
+            throw new IllegalArgumentException("mix has no positive weight");
+        }
+        return weights;
+    }
+
+    private static int pickKind() {
+        int roll = ThreadLocalRandom.current().nextInt(mix[0] + mix[1] + mix[2] + mix[3]);
+        for (int kind = 0; kind < mix.length; kind++) {
+            roll -= mix[kind];
+            if (roll < 0) return kind;
+        }
+        return 0;
+    }
+
+    private static void report(int receivers) {
+        double seconds = durationSeconds;
+        long chats = sent[0].sum(), dms = sent[1].sum(), statuses = sent[2].sum(), files = sent[3].sum();
+        long total = chats + dms + statuses + files;
+        // broadcasts and files reach every client, DMs the recipient and the sender's echo
+        long expected = (chats + files) * receivers + dms * 2;
+        System.out.println();
+        System.out.println("Clients:   " + receivers + " logged in, " + disconnected.get() + " disconnected during the run");
+        System.out.printf("Sent:      %d in %d s = %.1f msg/s (chat %d, dm %d, status %d, file %d)%n",
+                total, durationSeconds, total / seconds, chats, dms, statuses, files);
+        long delivered = latency.count();
+        System.out.printf("Delivered: %d of %d expected = %.1f msg/s%n", delivered, expected, delivered / seconds);
+        System.out.printf("Latency:   p50 %s  p90 %s  p99 %s  p99.9 %s  max %s ms%n",
+                millis(latency.valueAtPercentile(50)), millis(latency.valueAtPercentile(90)),
+                millis(latency.valueAtPercentile(99)), millis(latency.valueAtPercentile(99.9)),
+                millis(latency.max()));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    /** One simulated user: a socket, a reader on its own thread, and sends from the scheduler. */
+    private static final class Client {
+        private final String requested;
+        private final CountDownLatch handshakes;
+        private Socket socket;
+        private BufferedReader in;
+        private Writer out;
+        // set once the server confirms the login
+        volatile String username;
+        // when the next message is due; only the scheduler touches it, one run at a time
+        long due;
+
+        Client(String requested, CountDownLatch handshakes) {
+            this.requested = requested;
+            this.handshakes = handshakes;
+        }
+
+        void connect(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address, 10000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        void readLoop() {
+            boolean counted = false;
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (username == null) {
+                        if (line.startsWith("Enter your username")) {
+                            send(requested);
+                        } else if (line.equals("USER_EVENT::joined::" + requested)) {
+                            username = requested;
+                            loggedIn.incrementAndGet();
+                            handshakes.countDown();
+                            counted = true;
+                        } else if (line.startsWith("Username already taken")) {
+                            System.out.println(requested + " was refused: " + line);
+                            handshakes.countDown();
+                            counted = true;
+                            return;
+                        }
+                        continue;
+                    }
+                    received(line);
+                }
+            } catch (IOException e) {
+                // closed
+            } finally {
+                if (!counted) {
+                    handshakes.countDown();
+                }
+                if (username != null && System.nanoTime() < measureEnd) {
+                    disconnected.incrementAndGet();
+                }
+                close();
+            }
+        }
+
+        // Chat "sender: lg@T", DM "PRIVATE::sender: lg@T", file "FILE_FROM::sender::lg@T.bin::data"
+        private void received(String line) {
+            int mark = line.indexOf(MARK);
+            if (mark < 0) return;
+            long now = System.nanoTime();
+            arrivals.increment();
+            long due = 0;
+            for (int i = mark + MARK.length(); i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9') break;
+                due = due * 10 + (c - '0');
+            }
+            if (due < measureStart || due >= measureEnd) return;
+            latency.record(now - due);
+        }
+
+        void sendNext(List<Client> everyone, long interval, String fileData) {
+            long stamp = due;
+            due += interval;
+            if (socket.isClosed()) return;
+            int kind = pickKind();
+            String line;
+            switch (kind) {
+                case 1: {
+                    // someone else, so the DM is delivered twice (recipient and echo) as counted
+                    Client peer = everyone.get(ThreadLocalRandom.current().nextInt(everyone.size()));
+                    if (peer == this && everyone.size() > 1) {
+                        peer = everyone.get((everyone.indexOf(this) + 1) % everyone.size());
+                    }
+                    line = "DM::" + peer.username + "::" + MARK + stamp;
+                    break;
+                }
+                case 2:
+                    line = "STATUS::" + STATUSES[ThreadLocalRandom.current().nextInt(STATUSES.length)];
+                    break;
+                case 3:
+                    line = "FILE::" + MARK + stamp + ".bin::" + fileData;
+                    break;
+                default:
+                    line = MARK + stamp;
+            }
+            try {
+                send(line);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (stamp >= measureStart && stamp < measureEnd) {
+                sent[kind].increment();
+            }
+        }
+
+        private void send(String line) throws IOException {
+            synchronized (out) {
+                out.write(line);
+                out.write('\n');
+                out.flush();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import javax.swing.AbstractListModel;
+import java.awt.Dimension;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The messages of one chat view, as the model of a JList, which only renders the rows on
+ * screen. The newest messages (up to capacity, evicted in batches) stay in memory; older
+ * ones are spilled to a temp file and read back a page at a time when the user scrolls to
+ * the top. EDT only.
+ *
+ * The spill file holds every evicted message in order, each as
+ *
+ *   flags (1 byte: 1 own, 2 private) | sender length (4) | sender | text length (4) | text
+ *
+ * with its offset kept in memory, so any page can be read with one seek.
+ */
+class MessageHistory extends AbstractListModel<MessageHistory.Entry> implements Closeable {
+    private static final int EVICT_BATCH = 64;
+
+    /** One message as shown. */
+    static final class Entry {
+        final String sender;
+        final String text;
+        final boolean self;
+        final boolean privateMessage;
+        // The renderer's size for this row and the view width it was measured at
+        int measuredWidth = -1;
+        Dimension measured;
+
+        Entry(String sender, String text, boolean self, boolean privateMessage) {
+            this.sender = sender == null ? "" : sender;
+            this.text = text == null ? "" : text;
+            this.self = self;
+            this.privateMessage = privateMessage;
+        }
+    }
+
+    private final int capacity;
+    private final int page;
+    private final List<Entry> window = new ArrayList<>();
+    // Position in the whole history of window.get(0); everything before it is on disk
+    private int first;
+    // Messages 0..spilled-1 are in the spill file, starting at offsets[i]
+    private int spilled;
+    private long[] offsets = new long[1024];
+    // Messages before this could not be spilled and are gone
+    private int lost;
+    private Path spillPath;
+    private RandomAccessFile spill;
+
+    MessageHistory(int capacity, int page) {
+        this.capacity = capacity;
+        this.page = page;
+    }
+
+    @Override
+    public int getSize() {
+        return window.size();
+    }
+
+    @Override
+    public Entry getElementAt(int index) {
+        return window.get(index);
+    }
+
+    /** Position of the first row in the whole history; it grows as rows are evicted. */
+    int firstPosition() {
+        return first;
+    }
+
+    /** True if older messages than the first row can be loaded. */
+    boolean hasOlder() {
+        return first > lost;
+    }
+
+    void add(Entry entry) {
+        window.add(entry);
+        fireIntervalAdded(this, window.size() - 1, window.size() - 1);
+        if (window.size() > capacity + EVICT_BATCH) {
+            evict(window.size() - capacity);
+        }
+    }
+
+    // Drops the oldest rows from memory, writing the ones not yet on disk to the spill file
+    private void evict(int count) {
+        try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(records);
+            long end = spillFile().length();
+            for (int i = 0; i < count; i++) {
+                if (first + i < spilled) continue; // loaded back from disk, already there
+                Entry entry = window.get(i);
+                if (spilled == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                offsets[spilled++] = end + data.size();
+                data.writeByte((entry.self ? 1 : 0) | (entry.privateMessage ? 2 : 0));
+                writeString(data, entry.sender);
+                writeString(data, entry.text);
+            }
+            spill.seek(end);
+            spill.write(records.toByteArray());
+        } catch (IOException e) {
+            // the rows are still dropped so memory stays bounded; they just cannot be scrolled back to
+            System.out.println("Cannot spill chat history: " + e.getMessage());
+            spilled = Math.max(spilled, first + count);
+            lost = first + count;
+        }
+        window.subList(0, count).clear();
+        first += count;
+        fireIntervalRemoved(this, 0, count - 1);
+    }
+
+    private RandomAccessFile spillFile() throws IOException {
+        if (spill == null) {
+            spillPath = Files.createTempFile("chat-history-", ".bin");
+            spillPath.toFile().deleteOnExit();
+            spill = new RandomAccessFile(spillPath.toFile(), "rw");
+        }
+        return spill;
+    }
+
+    /**
+     * Reads the page of messages before the first row back into memory, as new rows at the top.
+     * @return the number of rows added
+     */
+    int loadOlder() {
+        if (!hasOlder()) return 0;
+        int from = Math.max(lost, first - page);
+        List<Entry> older = new ArrayList<>(first - from);
+        try {
+            long start = offsets[from];
+            long end = first < spilled ? offsets[first] : spill.length();
+            byte[] bytes = new byte[(int) (end - start)];
+            spill.seek(start);
+            spill.readFully(bytes);
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+            for (int i = from; i < first; i++) {
+                int flags = data.readByte();
+                String sender = readString(data);
+                older.add(new Entry(sender, readString(data), (flags & 1) != 0, (flags & 2) != 0));
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot read chat history: " + e.getMessage());
+            return 0;
+        }
+        window.addAll(0, older);
+        first = from;
+        fireIntervalAdded(this, 0, older.size() - 1);
+        return older.size();
+    }
+
+    /** Forgets every message, in memory and on disk. */
+    void clear() {
+        int size = window.size();
+        window.clear();
+        first = 0;
+        spilled = 0;
+        lost = 0;
+        try {
+            if (spill != null) spill.setLength(0);
+        } catch (IOException e) {
+            System.out.println("Cannot clear chat history: " + e.getMessage());
+        }
+        if (size > 0) fireIntervalRemoved(this, 0, size - 1);
+    }
+
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Deletes the spill file. */
+    @Override
+    public void close() {
+        try {
+            if (spill != null) {
+                spill.close();
+                Files.deleteIfExists(spillPath);
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot remove " + spillPath + ": " + e.getMessage());
+        }
+        spill = null;
+    }
+}
@@ -0,0 +1,305 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Durable append-only log of every broadcast and DM. Records go into fixed-size
+ * memory-mapped segment files, so an append is a bounds check and a memory copy under a
+ * short lock; the OS writes the pages back and a background thread forces them to disk
+ * every fsyncIntervalMillis (or every fsyncEvery records, if set). A full segment is
+ * trimmed to its used length and a new one is started. Old segments are deleted once the
+ * log exceeds retentionBytes or a segment is older than retentionMillis.
+ *
+ * Segment files are named by the log offset of their first byte. Each record is
+ *
+ *   length (4 bytes, of the rest) | timestamp millis (8) | target length (2) | target | frame
+ *
+ * where target is the DM recipient (empty for broadcasts) and frame is the message in
+ * FrameCodec's binary encoding. A zero length marks the end of the written part of the
+ * active segment.
+ */
+class MessageLog implements Closeable {
+    private static final int RECORD_HEADER = 4 + 8 + 2;
+    /** Longest target, in UTF-8 bytes, that fits the record's length field. */
+    static final int MAX_TARGET = Short.MAX_VALUE;
+    private static final String SUFFIX = ".log";
+
+    /** Receives records from read(). */
+    interface Visitor {
+        /** @return false to stop reading */
+        boolean record(long offset, long timestamp, String target, ByteBuffer frame);
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int fsyncEvery;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    // Guards appends, rolls and retention. Held only for the copy into the mapping: the
+    // periodic force happens outside it; only a roll (once per segment) and fsyncEvery force under it.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Long, Path> closed = new TreeMap<>();
+    private Segment active;
+    private int unsynced;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "log-flush");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** The segment being appended to. */
+    private static final class Segment {
+        final long base;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // first byte not yet forced to disk; a racing update at worst forces a range twice
+        volatile int synced;
+
+        Segment(long base, Path path, int size) throws IOException {
+            this.base = base;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    MessageLog(Path dir, int segmentBytes, long fsyncIntervalMillis, int fsyncEvery,
+               long retentionBytes, long retentionMillis) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.segmentBytes = segmentBytes;
+        this.fsyncEvery = fsyncEvery;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        recover();
+        flusher.scheduleWithFixedDelay(this::sync, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Reopens the newest segment and finds its end; all older ones are complete
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    closed.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    System.out.println("Ignoring unexpected file in log directory: " + file);
+                }
+            }
+        }
+        Map.Entry<Long, Path> last = closed.pollLastEntry();
+        if (last == null) {
+            active = new Segment(0, segmentPath(0), segmentBytes);
+            return;
+        }
+        active = new Segment(last.getKey(), last.getValue(), segmentBytes);
+        ByteBuffer buffer = active.buffer;
+        int position = 0;
+        while (position + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - 4) break;
+            position += 4 + length;
+        }
+        buffer.position(position);
+        active.synced = position;
+        System.out.println("Message log " + dir.toAbsolutePath() + " resumes at offset " + (active.base + position));
+    }
+
+    private Path segmentPath(long base) {
+        return dir.resolve(String.format("%020d%s", base, SUFFIX));
+    }
+
+    /**
+     * Appends a message.
+     * @param target the DM recipient, or "" for a broadcast
+     * @return the log offset of the record
+     * @throws IllegalArgumentException if the target is over MAX_TARGET bytes in UTF-8
+     */
+    long append(String target, EncodedMessage message) throws IOException {
+        ByteBuffer frame = message.forProtocol(EncodedMessage.BINARY).buffer();
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        if (targetBytes.length > MAX_TARGET) {
+            throw new IllegalArgumentException("DM target is " + targetBytes.length + " bytes, over the " + MAX_TARGET + " a record holds");
+        }
+        int recordSize = RECORD_HEADER + targetBytes.length + frame.remaining();
+        long timestamp = System.currentTimeMillis();
+        lock.lock();
+        try {
+            MappedByteBuffer buffer = active.buffer;
+            // keep room for the zero end marker
+            if (buffer.remaining() < recordSize + 4) {
+                roll(recordSize + 4);
+                buffer = active.buffer;
+            }
+            long offset = active.base + buffer.position();
+            buffer.putInt(recordSize - 4)
+                    .putLong(timestamp)
+                    .putShort((short) targetBytes.length)
+                    .put(targetBytes)
+                    .put(frame);
+            if (fsyncEvery > 0 && ++unsynced >= fsyncEvery) {
+                unsynced = 0;
+                force(active, buffer.position());
+            }
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held: closes the active segment at its written length and starts the next
+    private void roll(int minSize) throws IOException {
+        Segment old = active;
+        int end = old.buffer.position();
+        if (end == 0) {
+            // nothing in it yet, so rolling would start a segment with the same base; grow
+            // this one to fit instead (only a record larger than a whole segment gets here)
+            old.channel.close();
+            active = new Segment(old.base, old.path, Math.max(segmentBytes, minSize));
+            return;
+        }
+        force(old, end);
+        try {
+            old.channel.truncate(end);
+        } catch (IOException e) {
+            // some platforms refuse to truncate a mapped file; readers stop at the zero marker anyway
+            System.out.println("Could not trim log segment " + old.path.getFileName() + ": " + e.getMessage());
+        }
+        old.channel.close();
+        closed.put(old.base, old.path);
+        long base = old.base + end;
+        active = new Segment(base, segmentPath(base), Math.max(segmentBytes, minSize));
+        applyRetention();
+    }
+
+    private static void force(Segment segment, int end) {
+        int from = segment.synced;
+        if (end > from) {
+            segment.buffer.force(from, end - from);
+            segment.synced = end;
+        }
+    }
+
+    /** Forces everything appended so far to disk; runs on the flusher thread. */
+    void sync() {
+        Segment segment;
+        int end;
+        lock.lock();
+        try {
+            segment = active;
+            end = segment.buffer.position();
+        } finally {
+            lock.unlock();
+        }
+        // a mapping stays valid after a roll closes its channel, so this needs no lock
+        force(segment, end);
+        lock.lock();
+        try {
+            applyRetention();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error syncing message log: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held. Never deletes the active segment.
+    private void applyRetention() throws IOException {
+        long total = active.buffer.position();
+        for (Path file : closed.values()) {
+            total += Files.size(file);
+        }
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        while (!closed.isEmpty()) {
+            Map.Entry<Long, Path> oldest = closed.firstEntry();
+            long size = Files.size(oldest.getValue());
+            if (total <= retentionBytes && Files.getLastModifiedTime(oldest.getValue()).toMillis() >= cutoff) break;
+            Files.deleteIfExists(oldest.getValue());
+            closed.pollFirstEntry();
+            total -= size;
+            System.out.println("Message log: removed segment " + oldest.getValue().getFileName());
+        }
+    }
+
+    /** Offset the next record will get. */
+    long endOffset() {
+        lock.lock();
+        try {
+            return active.base + active.buffer.position();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Visits records from the given offset (or the oldest retained one, if that is later)
+     * up to the current end. Closed segments are read without holding the append lock.
+     */
+    void read(long fromOffset, Visitor visitor) throws IOException {
+        List<Map.Entry<Long, Path>> segments;
+        ByteBuffer tail;
+        long tailBase;
+        lock.lock();
+        try {
+            Long first = closed.floorKey(fromOffset);
+            segments = new ArrayList<>((first == null ? closed : closed.tailMap(first, true)).entrySet());
+            tail = active.buffer.duplicate();
+            tail.flip();
+            tailBase = active.base;
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Long, Path> segment : segments) {
+            ByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(segment.getValue(), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (NoSuchFileException e) {
+                continue; // removed by retention meanwhile
+            }
+            if (!readSegment(segment.getKey(), buffer, fromOffset, visitor)) return;
+        }
+        readSegment(tailBase, tail, fromOffset, visitor);
+    }
+
+    private static boolean readSegment(long base, ByteBuffer buffer, long fromOffset, Visitor visitor) {
+        int position = 0;
+        while (position + RECORD_HEADER <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0) break;
+            long offset = base + position;
+            if (offset >= fromOffset) {
+                long timestamp = buffer.getLong(position + 4);
+                int targetLength = buffer.getShort(position + 12) & 0xffff;
+                String target = "";
+                if (targetLength > 0) {
+                    byte[] targetBytes = new byte[targetLength];
+                    buffer.duplicate().position(position + RECORD_HEADER).get(targetBytes);
+                    target = new String(targetBytes, StandardCharsets.UTF_8);
+                }
+                ByteBuffer frame = buffer.duplicate();
+                frame.position(position + RECORD_HEADER + targetLength).limit(position + 4 + length);
+                if (!visitor.record(offset, timestamp, target, frame.slice())) return false;
+            }
+            position += 4 + length;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        lock.lock();
+        try {
+            force(active, active.buffer.position());
+            active.channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server counters, gauges and latency histograms. Recording never locks: counters are
+ * LongAdders, which spread contended increments over per-thread cells, and histograms are
+ * LatencyHistograms. Gauges (sessions, queue depths) are computed when read.
+ *
+ * Everything is readable over JMX as the attributes of chat:type=Metrics and, with
+ * --metrics-port, as "name value" lines from http://127.0.0.1:port/metrics.
+ */
+final class Metrics {
+    // Indexed by FrameCodec type; text-protocol lines count as the type they stand for
+    private static final String[] TYPE_NAMES = {
+            "line", "login", "chat", "dm", "private", "status", "file", "file_from", "user_event",
+            "presence", "file_begin", "file_chunk", "file_end", "file_offer", "file_ack", "file_ref",
+            "resume", "session", "join", "leave", "room_chat", "room_event", "ping", "pong", "other"};
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+    static final LongAdder connectionsAccepted = new LongAdder();
+    static final LongAdder connectionsOpen = new LongAdder();
+    static final LongAdder slowConsumerDisconnects = new LongAdder();
+    /** Messages a full outbound queue discarded under drop-oldest or drop-presence. */
+    static final LongAdder slowConsumerDrops = new LongAdder();
+    /** Connections turned away by --max-connections. */
+    static final LongAdder connectionsRejected = new LongAdder();
+    /** Times a client over a rate limit (or sending files into a full backlog) was not read from. */
+    static final LongAdder readPauses = new LongAdder();
+    /** Sessions closed because nothing was heard from them for the idle timeout. */
+    static final LongAdder idleEvictions = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder[] messagesIn = adders(TYPE_NAMES.length);
+    private static final LongAdder[] messagesOut = adders(TYPE_NAMES.length);
+    /** Time to queue one broadcast for every recipient, in nanoseconds. */
+    static final LatencyHistogram broadcastFanout = new LatencyHistogram(HIGHEST_LATENCY);
+    /** From connection to completed login, in nanoseconds. */
+    static final LatencyHistogram handshake = new LatencyHistogram(HIGHEST_LATENCY);
+
+    private Metrics() {
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    private static int typeIndex(byte type) {
+        return type >= 0 && type < TYPE_NAMES.length - 1 ? type : TYPE_NAMES.length - 1;
+    }
+
+    static void messageIn(byte type) {
+        messagesIn[typeIndex(type)].increment();
+    }
+
+    static void messageOut(byte type) {
+        messagesOut[typeIndex(type)].increment();
+    }
+
+    /** Counts what is read through the stream into bytesIn. */
+    static InputStream counting(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytesIn.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) bytesIn.add(n);
+                return n;
+            }
+        };
+    }
+
+    /** Every metric by name, in a stable order; message types never seen are left out. */
+    static Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        values.put("connections_accepted", connectionsAccepted.sum());
+        values.put("connections_open", connectionsOpen.sum());
+        values.put("sessions", (long) ChatServer.sessions.size());
+        values.put("rooms", (long) ChatServer.rooms.size());
+        values.put("slow_consumer_disconnects", slowConsumerDisconnects.sum());
+        values.put("slow_consumer_drops", slowConsumerDrops.sum());
+        values.put("connections_rejected", connectionsRejected.sum());
+        values.put("read_pauses", readPauses.sum());
+        values.put("idle_evictions", idleEvictions.sum());
+        values.put("bytes_in", bytesIn.sum());
+        values.put("bytes_out", bytesOut.sum());
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            long count = messagesIn[i].sum();
+            if (count > 0) values.put("messages_in." + TYPE_NAMES[i], count);
+        }
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            long count = messagesOut[i].sum();
+            if (count > 0) values.put("messages_out." + TYPE_NAMES[i], count);
+        }
+        long queued = 0;
+        long deepest = 0;
+        for (ChatServer.ClientHandler client : ChatServer.sessions.values()) {
+            int depth = client.queued();
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+        }
+        values.put("outbound_queued", queued);
+        values.put("outbound_queued_max", deepest);
+        values.put("outbound_file_bytes", OutboundQueue.queuedFileBytes());
+        PresenceCoalescer presence = ChatServer.presence;
+        if (presence != null) {
+            // changes recorded, changes sent after coalescing, and flushes that sent anything
+            values.put("presence_events", presence.events());
+            values.put("presence_deltas", presence.deltas());
+            values.put("presence_flushes", presence.flushes());
+        }
+        histogram(values, "broadcast_fanout_nanos", broadcastFanout);
+        histogram(values, "handshake_nanos", handshake);
+        return values;
+    }
+
+    private static void histogram(Map<String, Long> values, String name, LatencyHistogram histogram) {
+        values.put(name + ".count", histogram.count());
+        values.put(name + ".p50", histogram.valueAtPercentile(50));
+        values.put(name + ".p99", histogram.valueAtPercentile(99));
+        values.put(name + ".p999", histogram.valueAtPercentile(99.9));
+        values.put(name + ".max", histogram.max());
+    }
+
+    static String render() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> metric : snapshot().entrySet()) {
+            text.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /** Registers chat:type=Metrics with the platform MBean server. */
+    static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("chat:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /** Serves render() at /metrics on the loopback interface only. */
+    static void serveHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+    }
+
+    /** Read-only attributes, one per metric; the set grows as message types are seen. */
+    private static final class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Long value = values.get(attribute);
+                if (value != null) list.add(new Attribute(attribute, value));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics", attributes, null, null, null);
+        }
+    }
+}
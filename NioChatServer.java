@@ -0,0 +1,431 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking server mode. One acceptor hands new sockets round-robin to a small fixed
+ * set of selector loops, each of which multiplexes many connections. Every connection
+ * talks the same text protocol (or negotiated binary frames) and is driven by a regular
+ * ChatServer.ClientHandler, so existing clients work unchanged. Commands that wait on
+ * the disk (blob store writes, the log replay for a resume) run on a small worker pool,
+ * and the sending connection is not read meanwhile; the loop goes on serving the rest.
+ */
+class NioChatServer {
+    private final int port;
+    private final EventLoop[] loops;
+    // Wakes rate-limited connections; the resume itself runs on the connection's loop
+    private static final ScheduledExecutorService resumer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "nio-resume");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Runs what a handler must not do on a loop: blob store writes and log replay
+    private static final int WORKERS = 4;
+    private static final ExecutorService workers = Executors.newFixedThreadPool(WORKERS, r -> {
+        Thread thread = new Thread(r, "nio-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    NioChatServer(int port, int ioThreads) {
+        this.port = port;
+        this.loops = new EventLoop[ioThreads];
+    }
+
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+            loops[i].start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            System.out.println("Server started on port " + port + " (nio, " + loops.length + " I/O loops)");
+            System.out.println("Java runtime: " + System.getProperty("java.version") + " (home=" + System.getProperty("java.home") + ")");
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                if (!ChatServer.admit(channel)) continue;
+                System.out.println("New client connected from: " + channel.socket().getInetAddress());
+                Metrics.connectionsAccepted.increment();
+                Metrics.connectionsOpen.increment();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /** A selector thread that owns a subset of the connections. */
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /** Runs the task on this loop's thread. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                Connection connection = new Connection(this, channel);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    connection.close();
+                    return;
+                }
+                connection.open();
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.close();
+                            continue;
+                        }
+                        if (key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error in " + thread.getName() + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    System.out.println("Unexpected error in " + thread.getName() + ": " + e);
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * One client socket. Reads are split into lines (or frames) on the loop thread; writes may come
+     * from any loop (broadcasts) and go through the client's bounded outbound queue, which
+     * only the owning loop drains.
+     */
+    static class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final ChatServer.ClientHandler handler;
+        private static final int READ_BUFFER_SIZE = 8192;
+        // Legacy FILE:: lines carry a whole Base64 file, so allow a bit more than a max frame
+        private static final int MAX_LINE = FrameCodec.MAX_PAYLOAD * 2;
+        // Grows to fit a long line or large frame, and shrinks back once it has been handled
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // Bytes of the current partial line already searched for a newline
+        private int scanned;
+        // Size the pending frame needs buffered in one piece
+        private int needed;
+        private final OutboundQueue outbound = new OutboundQueue(ChatServer.outboundLimit, ChatServer.slowConsumerPolicy);
+        private final ByteBuffer[] batch = new ByteBuffer[64];
+        private int batchStart;
+        private int batchEnd;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private SelectionKey key;
+        private boolean closeWhenFlushed;
+        // Not reading while the client is over a rate limit or a command is with a worker; loop thread only
+        private boolean paused;
+        // A command handed to a worker is not done yet; loop thread only
+        private boolean working;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.handler = new ChatServer.ClientHandler(this);
+        }
+
+        private void open() {
+            System.out.println("Requesting username...");
+            handler.watchIdle();
+            write(EncodedMessage.of(FrameCodec.PROMPT + FrameCodec.HELLO_PROMPT_SUFFIX));
+        }
+
+        void write(EncodedMessage message) {
+            if (closed.get()) return;
+            if (!outbound.offer(message)) {
+                System.out.println("Disconnecting slow client: outbound queue full");
+                Metrics.slowConsumerDisconnects.increment();
+                closeLater();
+                return;
+            }
+            if (loop.inLoop()) {
+                flush();
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+            }
+        }
+
+        private void read() {
+            int n;
+            try {
+                n = channel.read(readBuffer);
+            } catch (IOException e) {
+                System.out.println("Error handling client: " + e.getMessage());
+                close();
+                return;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+            Metrics.bytesIn.add(n);
+            handler.readActivity();
+            handleInput();
+        }
+
+        // Handles what has been read so far; the buffer is left ready for the next read
+        private void handleInput() {
+            readBuffer.flip();
+            try {
+                if (!process()) {
+                    closeWhenFlushed();
+                    return;
+                }
+            } catch (IOException e) {
+                System.out.println("Protocol error from client: " + e.getMessage());
+                close();
+                return;
+            } catch (RuntimeException e) {
+                // a bug handling one client's input must not leave its buffer flipped
+                System.out.println("Unexpected error handling client input: " + e);
+                e.printStackTrace();
+                close();
+                return;
+            }
+            readBuffer.compact();
+            if (readBuffer.position() == 0 && readBuffer.capacity() > READ_BUFFER_SIZE) {
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            } else if (!paused && (!readBuffer.hasRemaining() || readBuffer.capacity() < needed)) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+        }
+
+        /**
+         * Hands every complete line, or frame once binary framing is negotiated, in the read
+         * buffer to the handler. Lines are found by scanning bytes rather than decoding the
+         * whole buffer, so a protocol switch mid-buffer leaves the following bytes intact.
+         * @return false if the handler wants the session closed
+         */
+        private boolean process() throws IOException {
+            while (true) {
+                if (handler.binaryFrames()) {
+                    int size = FrameCodec.frameSize(readBuffer);
+                    if (size < 0 || readBuffer.remaining() < size) {
+                        needed = size;
+                        return true;
+                    }
+                    needed = 0;
+                    if (!handler.onFrame(FrameCodec.decode(readBuffer))) return false;
+                    if (pauseIfBusy()) return true;
+                    continue;
+                }
+                int start = readBuffer.position();
+                int end = -1;
+                for (int i = start + scanned; i < readBuffer.limit(); i++) {
+                    if (readBuffer.get(i) == '\n') {
+                        end = i;
+                        break;
+                    }
+                }
+                if (end < 0) {
+                    scanned = readBuffer.remaining();
+                    if (scanned > MAX_LINE) throw new IOException("Line too long");
+                    return true;
+                }
+                scanned = 0;
+                int length = end - start;
+                if (length > 0 && readBuffer.get(end - 1) == '\r') length--;
+                // parsed in place; the handler is done with the bytes when it returns
+                boolean open = handler.onLine(readBuffer.array(), readBuffer.arrayOffset() + start, length);
+                readBuffer.position(end + 1);
+                if (!open) return false;
+                if (pauseIfBusy()) return true;
+            }
+        }
+
+        /**
+         * Stops reading while the last command is with a worker or the client is over a rate
+         * limit; the rest of the read buffer waits, and what the client sends meanwhile stays
+         * in the socket until TCP flow control holds it back.
+         * @return true if reading was paused
+         */
+        private boolean pauseIfBusy() {
+            if (working) {
+                paused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return true;
+            }
+            long pause = handler.readPause();
+            if (pause <= 0) return false;
+            paused = true;
+            Metrics.readPauses.increment();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            resumeAfter(pause);
+            return true;
+        }
+
+        /**
+         * Runs part of a command on a worker thread; call from the handler on the loop. This
+         * client's input is not read until it is done, so its commands still run one at a
+         * time and in order, and the handler's reader-only state changes hands with it.
+         */
+        void offload(Runnable work) {
+            working = true;
+            workers.execute(() -> {
+                try {
+                    work.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Unexpected error handling client input: " + e);
+                    e.printStackTrace();
+                } finally {
+                    loop.execute(this::workDone);
+                }
+            });
+        }
+
+        private void workDone() {
+            working = false;
+            // closed meanwhile: logging out was left until the worker was done with the handler
+            if (closed.get()) {
+                handler.logout();
+                return;
+            }
+            resume();
+        }
+
+        private void resumeAfter(long nanos) {
+            resumer.schedule(() -> loop.execute(this::resume), nanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void resume() {
+            if (closed.get() || closeWhenFlushed || working) return;
+            // not idle: it is us not reading
+            handler.readActivity();
+            long pause = handler.readPause();
+            if (pause > 0) {
+                resumeAfter(pause);
+                return;
+            }
+            paused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            handleInput();
+        }
+
+        private void flush() {
+            if (closed.get() || key == null || !key.isValid()) return;
+            try {
+                while (true) {
+                    if (batchStart == batchEnd) {
+                        batchStart = 0;
+                        batchEnd = outbound.drainTo(batch);
+                        if (batchEnd == 0) break;
+                    }
+                    Metrics.bytesOut.add(channel.write(batch, batchStart, batchEnd - batchStart));
+                    while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                        batch[batchStart++] = null;
+                    }
+                    if (batchStart < batchEnd) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closeWhenFlushed) closeLater();
+            } catch (IOException e) {
+                System.out.println("Error writing to client: " + e.getMessage());
+                closeLater();
+            }
+        }
+
+        /**
+         * Closes on a later turn of the loop. For closes set off by a write: flush() runs
+         * inside other connections' sends, and closing logs the user out, which sends to
+         * everyone again, so closing inline would recurse once per dying connection (and
+         * overflow the stack when thousands drop at once).
+         */
+        private void closeLater() {
+            // no more flushes meanwhile
+            if (key != null) key.cancel();
+            loop.execute(this::close);
+        }
+
+        /** Closes the connection from any thread. */
+        void shutdown() {
+            if (loop.inLoop()) {
+                close();
+            } else {
+                loop.execute(this::close);
+            }
+        }
+
+        /** Stops reading and closes once everything already queued has been written. */
+        private void closeWhenFlushed() {
+            closeWhenFlushed = true;
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            flush();
+        }
+
+        int queued() {
+            return outbound.size();
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            Metrics.connectionsOpen.decrement();
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Error closing socket: " + e.getMessage());
+            }
+            outbound.close();
+            if (!working) handler.logout();
+        }
+    }
+}
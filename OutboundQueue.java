@@ -0,0 +1,187 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of outbound lines for a single client. Senders only ever enqueue, and the
+ * client's own writer drains it, so one stalled receiver can fill its own queue but
+ * cannot block the sender or anyone else.
+ */
+class OutboundQueue {
+
+    /** What to do when a client's queue is full. */
+    enum SlowConsumerPolicy {
+        /** Discard the oldest queued line to make room. */
+        DROP_OLDEST,
+        /** Discard queued roster/user-event lines (a later one supersedes them); disconnect if none are left. */
+        DROP_PRESENCE,
+        /** Disconnect the client. */
+        DISCONNECT;
+
+        static SlowConsumerPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // File data (FILE_FROM and FILE_CHUNK messages) waiting in every client's queue, in
+    // bytes; the server stops reading files from senders while it is over its budget
+    private static final AtomicLong queuedFileBytes = new AtomicLong();
+
+    private final ArrayDeque<EncodedMessage> queue = new ArrayDeque<>();
+    private final int limit;
+    private final SlowConsumerPolicy policy;
+    // ReentrantLock/Condition rather than a monitor so a waiting virtual-thread writer parks cleanly
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean finished;
+    private boolean closed;
+    // This queue's share of queuedFileBytes
+    private long fileBytes;
+
+    OutboundQueue(int limit, SlowConsumerPolicy policy) {
+        this.limit = limit;
+        this.policy = policy;
+    }
+
+    /**
+     * Queues a line, applying the slow-consumer policy if the queue is full.
+     * @return false if the client has fallen too far behind and should be disconnected
+     */
+    boolean offer(EncodedMessage message) {
+        lock.lock();
+        try {
+            if (closed || finished) return true;
+            if (queue.size() >= limit) {
+                if (policy == SlowConsumerPolicy.DROP_OLDEST) {
+                    removed(queue.pollFirst());
+                } else if (policy == SlowConsumerPolicy.DROP_PRESENCE && removeQueuedPresence()) {
+                    // made room
+                } else if (policy == SlowConsumerPolicy.DROP_PRESENCE && message.isPresence()) {
+                    Metrics.slowConsumerDrops.increment();
+                    return true;
+                } else {
+                    return false;
+                }
+                Metrics.slowConsumerDrops.increment();
+            }
+            queue.addLast(message);
+            if (isFileData(message)) {
+                fileBytes += message.size();
+                queuedFileBytes.addAndGet(message.size());
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Bytes of file data queued for all clients, until their writers take it. */
+    static long queuedFileBytes() {
+        return queuedFileBytes.get();
+    }
+
+    private static boolean isFileData(EncodedMessage message) {
+        return message.type() == FrameCodec.FILE_FROM || message.type() == FrameCodec.FILE_CHUNK;
+    }
+
+    // Called with the lock held for a message leaving the queue.
+    private void removed(EncodedMessage message) {
+        if (message != null && isFileData(message)) {
+            fileBytes -= message.size();
+            queuedFileBytes.addAndGet(-message.size());
+        }
+    }
+
+    // Called with the lock held.
+    private boolean removeQueuedPresence() {
+        for (Iterator<EncodedMessage> it = queue.iterator(); it.hasNext(); ) {
+            if (it.next().isPresence()) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves as many queued lines as fit into the batch, without waiting.
+     * @return the number of buffers stored, each a private view for this writer
+     */
+    int drainTo(ByteBuffer[] batch) {
+        lock.lock();
+        try {
+            return closed ? 0 : drainLocked(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like drainTo, but waits until at least one line is queued.
+     * @return 0 once the queue is closed, or finished and drained
+     */
+    int take(ByteBuffer[] batch) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !finished && !closed) {
+                notEmpty.await();
+            }
+            return closed ? 0 : drainLocked(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int drainLocked(ByteBuffer[] batch) {
+        int n = 0;
+        long files = 0;
+        EncodedMessage message;
+        while (n < batch.length && (message = queue.pollFirst()) != null) {
+            batch[n++] = message.buffer();
+            if (isFileData(message)) files += message.size();
+        }
+        if (files > 0) {
+            fileBytes -= files;
+            queuedFileBytes.addAndGet(-files);
+        }
+        return n;
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Accepts no more lines; the writer drains what is already queued and then stops. */
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Discards everything queued and stops the writer. */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            queuedFileBytes.addAndGet(-fileBytes);
+            fileBytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
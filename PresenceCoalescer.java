@@ -0,0 +1,153 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects presence changes (joins, leaves, status updates) and flushes them at most once
+ * per interval as a single frame per client: one PRESENCE delta listing every changed user
+ * for clients that negotiated deltas, one full roster for legacy clients. A burst of joins
+ * after a restart costs one frame per client per tick instead of one per join.
+ */
+class PresenceCoalescer {
+    private final long intervalMillis;
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    // Users the last flush showed online; only touched under presenceLock
+    private final Set<String> published = new HashSet<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "presence-flush");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Counters: changes recorded, changes sent after merging, and flushes that sent anything
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong deltas = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    PresenceCoalescer(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /** Records that a user's presence changed; the next tick picks up their current state. */
+    void changed(String username) {
+        events.incrementAndGet();
+        dirty.add(username);
+        if (scheduled.compareAndSet(false, true)) {
+            timer.schedule(this::flush, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Where a snapshot differs from what the last flush published: users the client was
+     * shown online (true) or left out of it (false) while the other clients have yet to
+     * hear. Only users changed since the last flush can differ, so this stays small, and
+     * the client's deltas are worked out against it until those users have been flushed.
+     * Call with presenceLock held.
+     * @param shown the users in the snapshot
+     * @return the differences, or null if the snapshot matches the last flush
+     */
+    Map<String, Boolean> snapshotSeen(Set<String> shown) {
+        Map<String, Boolean> seen = new HashMap<>();
+        for (String name : shown) {
+            if (!published.contains(name)) seen.put(name, true);
+        }
+        if (shown.size() - seen.size() < published.size()) {
+            for (String name : published) {
+                if (!shown.contains(name)) seen.put(name, false);
+            }
+        }
+        return seen.isEmpty() ? null : seen;
+    }
+
+    private void flush() {
+        // cleared first so a change arriving during the flush schedules the next tick
+        scheduled.set(false);
+        List<String> names = new ArrayList<>();
+        for (Iterator<String> it = dirty.iterator(); it.hasNext(); ) {
+            names.add(it.next());
+            it.remove();
+        }
+        if (names.isEmpty()) return;
+
+        ChatServer.presenceLock.lock();
+        try {
+            Delta delta = new Delta(names.size());
+            for (String name : names) {
+                boolean online = ChatServer.isOnline(name);
+                boolean wasPublished = online ? !published.add(name) : published.remove(name);
+                delta.add(name, online ? ChatServer.statuses.getOrDefault(name, "Online") : null, wasPublished);
+            }
+            if (ChatServer.publishPresence(delta)) {
+                deltas.addAndGet(delta.ops(null).size() / 2);
+                flushes.incrementAndGet();
+            }
+        } finally {
+            ChatServer.presenceLock.unlock();
+        }
+    }
+
+    /**
+     * The users changed in one flush with their state at flush time, so several changes to
+     * one user collapse into one op and clients can apply them as idempotent upserts.
+     */
+    static final class Delta {
+        private final List<String> names;
+        // null for a user who is offline now
+        private final List<String> statuses;
+        private final boolean[] published;
+        private List<String> sharedOps;
+
+        private Delta(int size) {
+            names = new ArrayList<>(size);
+            statuses = new ArrayList<>(size);
+            published = new boolean[size];
+        }
+
+        private void add(String name, String status, boolean wasPublished) {
+            published[names.size()] = wasPublished;
+            names.add(name);
+            statuses.add(status);
+        }
+
+        List<String> names() {
+            return names;
+        }
+
+        /**
+         * Op/arg pairs for a client that knows the users of the last flush, except where
+         * seen says otherwise (see snapshotSeen); null seen for the common case.
+         */
+        List<String> ops(Map<String, Boolean> seen) {
+            if (seen == null && sharedOps != null) return sharedOps;
+            List<String> ops = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                boolean known = seen == null ? published[i] : seen.getOrDefault(name, published[i]);
+                String status = statuses.get(i);
+                if (status != null) {
+                    ops.add(known ? "status" : "add");
+                    ops.add(name + "|" + status);
+                } else if (known) {
+                    ops.add("remove");
+                    ops.add(name);
+                }
+            }
+            if (seen == null) sharedOps = ops;
+            return ops;
+        }
+    }
+
+    long events() {
+        return events.get();
+    }
+
+    long deltas() {
+        return deltas.get();
+    }
+
+    long flushes() {
+        return flushes.get();
+    }
+}
@@ -0,0 +1,55 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Rules the client and server share that are not part of the wire format itself: room
+ * names and the SHA-256 digests that name shared files. Kept apart from ChatServer and
+ * BlobStore so the client never loads server classes (and with them the server's statics,
+ * such as its timer thread).
+ */
+final class Protocol {
+    /** The room every user is in; never joined or left explicitly. */
+    static final String DEFAULT_ROOM = "general";
+    static final int MAX_ROOM_NAME = 32;
+
+    private Protocol() {
+    }
+
+    /** Room names are 1-32 letters, digits, '-' or '_', and not case-sensitive. @return null if invalid */
+    static String roomName(String requested) {
+        String name = requested.trim().toLowerCase(Locale.ROOT);
+        if (name.isEmpty() || name.length() > MAX_ROOM_NAME) return null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') return null;
+        }
+        return name;
+    }
+
+    /** Whether s looks like a hex SHA-256 digest, as files are named by. */
+    static boolean isHash(String s) {
+        if (s == null || s.length() != 64) return false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The sequence numbers of the last messages a client received. The server queues a
+ * message for its recipients after numbering it, so two messages sent at once can arrive
+ * in either order: a message below the highest number seen is not necessarily a repeat.
+ * Repeats are told apart by number instead, and a resume asks for everything after the
+ * oldest number remembered, so one still on its way when the connection dropped is
+ * replayed; those already received are skipped. Synchronized: the reader adds, a
+ * reconnect reads.
+ */
+final class ReceivedSeqs {
+    private final int capacity;
+    private final ArrayDeque<Long> order = new ArrayDeque<>();
+    private final Set<Long> seqs = new HashSet<>();
+
+    /** @param capacity how many numbers are remembered; more than messages ever overtake each other */
+    ReceivedSeqs(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /** @return false if the message with this number was already received */
+    synchronized boolean add(long seq) {
+        if (!seqs.add(seq)) return false;
+        order.addLast(seq);
+        if (order.size() > capacity) seqs.remove(order.removeFirst());
+        return true;
+    }
+
+    /** Where a resume should replay from: after this number. -1 if nothing was received. */
+    synchronized long resumeAfter() {
+        long oldest = -1;
+        for (long seq : seqs) {
+            if (oldest < 0 || seq < oldest) oldest = seq;
+        }
+        return oldest;
+    }
+
+    synchronized void clear() {
+        order.clear();
+        seqs.clear();
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * A token bucket: tokens refill continuously at a fixed rate up to a capacity (the burst
+ * a client may send at once), and every message takes some. A message larger than what
+ * is left is still let through but leaves the bucket in debt, and the caller stops
+ * reading from that client until the debt is paid off, so nothing it sent is dropped
+ * and nothing extra is buffered. Not thread-safe: one per client, used by its reader.
+ */
+final class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * @param perSecond tokens added per second
+     * @param capacity  most tokens held; the bucket starts full
+     */
+    TokenBucket(double perSecond, double capacity) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Takes count tokens.
+     * @return nanoseconds until the bucket is out of debt again, 0 if it is not in debt
+     */
+    long take(double count, long now) {
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+        tokens -= count;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+}
@@ -0,0 +1,210 @@
+import chat.bench.Harness;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs the server's own code for the benchmarks in chat.bench: handlers without sockets,
+ * whose outbound queues are drained in place of their writers.
+ */
+public class BenchHarness implements Harness {
+    private static final MethodHandle ROSTER_ENTRIES;
+    private static final Field OUTBOUND;
+
+    static {
+        try {
+            ROSTER_ENTRIES = MethodHandles.privateLookupIn(ChatServer.class, MethodHandles.lookup())
+                    .findStatic(ChatServer.class, "rosterEntries", MethodType.methodType(String.class));
+            OUTBOUND = ChatServer.ClientHandler.class.getDeclaredField("outbound");
+            OUTBOUND.setAccessible(true);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        // queues are drained after every operation; never treat a client as slow
+        ChatServer.outboundLimit = 1 << 20;
+    }
+
+    private final List<ChatServer.ClientHandler> clients = new ArrayList<>();
+    private final List<OutboundQueue> queues = new ArrayList<>();
+    private final ByteBuffer[] batch = new ByteBuffer[64];
+    private final CommandParser parser = new CommandParser();
+    private Path logDir;
+    private MessageLog log;
+    private EncodedMessage logged;
+
+    private void reset() {
+        ChatServer.sessions.clear();
+        ChatServer.statuses.clear();
+        ChatServer.rooms.clear();
+        ChatServer.initialize();
+        clients.clear();
+        queues.clear();
+    }
+
+    @Override
+    public void connect(int count) {
+        reset();
+        try {
+            for (int i = 0; i < count; i++) {
+                ChatServer.ClientHandler client = new ChatServer.ClientHandler((Socket) null);
+                if (!client.login("user" + i)) throw new IllegalStateException("login failed for user" + i);
+                clients.add(client);
+                queues.add((OutboundQueue) OUTBOUND.get(client));
+                drain();
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void register(int users) {
+        reset();
+        for (int i = 0; i < users; i++) {
+            String name = "user" + i;
+            ChatServer.sessions.put(name, new ChatServer.ClientHandler((Socket) null));
+            ChatServer.statuses.put(name, i % 3 == 0 ? "Away" : "Online");
+        }
+    }
+
+    @Override
+    public void dispatch(String line) {
+        clients.get(0).handleMessage(line);
+    }
+
+    @Override
+    public int drain() {
+        int total = 0;
+        for (OutboundQueue queue : queues) {
+            int n;
+            while ((n = queue.drainTo(batch)) > 0) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int rosterLine() {
+        try {
+            return EncodedMessage.of("Online users: " + (String) ROSTER_ENTRIES.invokeExact()).size();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int fileFrameFromText(String base64) {
+        return EncodedMessage.frame(FrameCodec.FILE_FROM, "user0", "notes.bin", base64)
+                .forProtocol(EncodedMessage.BINARY).size();
+    }
+
+    @Override
+    public int fileLineFromBytes(byte[] data) {
+        return EncodedMessage.frame(FrameCodec.FILE_FROM, "user0", "notes.bin", data).forProtocol(0).size();
+    }
+
+    @Override
+    public void openLog(long retentionMb, int messageBytes) {
+        try {
+            logDir = Files.createTempDirectory("chat-log-bench");
+            log = new MessageLog(logDir, 64 << 20, 1000, 0, retentionMb << 20, TimeUnit.DAYS.toMillis(7));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        char[] text = new char[messageBytes];
+        Arrays.fill(text, 'x');
+        logged = EncodedMessage.frame(FrameCodec.CHAT, "user0", new String(text));
+        // encoded once here, as a broadcast is before the server logs it
+        logged.forProtocol(EncodedMessage.BINARY);
+    }
+
+    @Override
+    public long appendToLog(String target) {
+        try {
+            return log.append(target, logged);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void closeLog() {
+        try {
+            log.close();
+            try (Stream<Path> files = Files.list(logDir)) {
+                for (Path file : (Iterable<Path>) files::iterator) Files.delete(file);
+            }
+            Files.delete(logDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public int splitLegacy(String message) {
+        String[] parts;
+        if (message.startsWith("STATUS::")) {
+            parts = new String[]{message.substring("STATUS::".length())};
+        } else if (message.startsWith("FILE::")) {
+            parts = message.substring("FILE::".length()).split("::", 2);
+        } else if (message.startsWith("FILE_OFFER::")) {
+            parts = message.substring("FILE_OFFER::".length()).split("::", 4);
+        } else if (message.startsWith("FILE_BEGIN::")) {
+            parts = message.substring("FILE_BEGIN::".length()).split("::", 3);
+        } else if (message.startsWith("FILE_CHUNK::")) {
+            parts = message.substring("FILE_CHUNK::".length()).split("::", 2);
+            if (parts.length == 2) return parts[0].length() + Base64.getDecoder().decode(parts[1]).length;
+        } else if (message.startsWith("FILE_END::")) {
+            parts = message.substring("FILE_END::".length()).split("::", 2);
+        } else if (message.startsWith("JOIN::")) {
+            parts = new String[]{message.substring("JOIN::".length())};
+        } else if (message.startsWith("LEAVE::")) {
+            parts = new String[]{message.substring("LEAVE::".length())};
+        } else if (message.startsWith("ROOM::")) {
+            parts = message.substring("ROOM::".length()).split("::", 2);
+        } else if (message.startsWith("DM::")) {
+            parts = message.substring("DM::".length()).split("::", 2);
+        } else {
+            parts = new String[]{message};
+        }
+        int length = 0;
+        for (String part : parts) length += part.length();
+        return length;
+    }
+
+    @Override
+    public int parseCommand(String line) {
+        parser.parseCommand(line);
+        return fieldsLength();
+    }
+
+    @Override
+    public int parseCommand(byte[] line) {
+        parser.parseCommand(line, 0, line.length);
+        return fieldsLength();
+    }
+
+    private int fieldsLength() {
+        if (parser.type() == FrameCodec.FILE_CHUNK && parser.fieldCount() == 2) {
+            return parser.field(0).length() + parser.base64Field(1).length;
+        }
+        int length = 0;
+        for (int i = 0; i < parser.fieldCount(); i++) length += parser.field(i).length();
+        return length;
+    }
+}
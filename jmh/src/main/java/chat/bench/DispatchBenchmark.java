@@ -0,0 +1,49 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/** One inbound text-protocol line through handleMessage, to a second connected client. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    @Param({"chat", "status", "dm", "file"})
+    public String kind;
+
+    private Harness harness;
+    private String line;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        harness = Harness.load();
+        harness.connect(2);
+        switch (kind) {
+            case "chat":
+                line = "hello everyone, how is it going?";
+                break;
+            case "status":
+                line = "STATUS::Away";
+                break;
+            case "dm":
+                line = "DM::user1::are you around?";
+                break;
+            case "file":
+                line = "FILE::notes.bin::" + Base64.getEncoder().encodeToString(new byte[48 * 1024]);
+                break;
+            default:
+                throw new IllegalArgumentException(kind);
+        }
+    }
+
+    @Benchmark
+    public int dispatch() {
+        harness.dispatch(line);
+        return harness.drain();
+    }
+}
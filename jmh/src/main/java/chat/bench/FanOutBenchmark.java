@@ -0,0 +1,37 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One general-room chat message of 120 characters delivered to N connected clients, and their
+ * queues drained. Run with {@code -prof gc} for bytes allocated per message
+ * ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"10", "100", "1000"})
+    public int sinks;
+
+    private static final String LINE = "x".repeat(120);
+
+    private Harness harness;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        harness = Harness.load();
+        harness.connect(sinks);
+    }
+
+    @Benchmark
+    public int broadcast() {
+        harness.dispatch(LINE);
+        return harness.drain();
+    }
+}
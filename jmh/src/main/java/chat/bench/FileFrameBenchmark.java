@@ -0,0 +1,41 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Re-encoding a shared file between the text protocol (Base64) and binary frames (raw bytes). */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileFrameBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private Harness harness;
+    private byte[] data;
+    private String base64;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        harness = Harness.load();
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+        base64 = Base64.getEncoder().encodeToString(data);
+    }
+
+    @Benchmark
+    public int textToBinary() {
+        return harness.fileFrameFromText(base64);
+    }
+
+    @Benchmark
+    public int binaryToText() {
+        return harness.fileLineFromBytes(data);
+    }
+}
@@ -0,0 +1,65 @@
+package chat.bench;
+
+/**
+ * What the benchmarks drive. The chat classes live in the default package, which code in
+ * a named package (as JMH requires) cannot refer to, so BenchHarness, in the default
+ * package, implements this and is loaded by name. Calls through it are plain interface
+ * calls, so nothing reflective is on a measured path.
+ */
+public interface Harness {
+
+    static Harness load() {
+        try {
+            return (Harness) Class.forName("BenchHarness").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchHarness not on the classpath", e);
+        }
+    }
+
+    /** Clears all server state and logs in user0..user(n-1), each with an in-memory outbound queue. */
+    void connect(int clients);
+
+    /** Clears all server state and registers n online users without logging them in. */
+    void register(int users);
+
+    /** Handles one inbound text-protocol line from user0, as its reader would. */
+    void dispatch(String line);
+
+    /** Empties every client's queue as their writers would. @return the number of buffers taken */
+    int drain();
+
+    /** Builds and encodes the full "Online users:" roster line. @return its size in bytes */
+    int rosterLine();
+
+    /** A text client's FILE_FROM (Base64) as a binary client gets it. @return the frame size */
+    int fileFrameFromText(String base64);
+
+    /** A binary client's FILE_FROM (raw bytes) as a text client gets it. @return the line size */
+    int fileLineFromBytes(byte[] data);
+
+    /**
+     * Opens a message log in a new temporary directory with the server's default segment
+     * size and fsync interval, keeping at most retentionMb on disk, and encodes one chat
+     * message of messageBytes characters to append.
+     */
+    void openLog(long retentionMb, int messageBytes);
+
+    /** Appends the message to the log. @param target the DM recipient, or "" @return its offset */
+    long appendToLog(String target);
+
+    /** Closes the log and deletes its directory. */
+    void closeLog();
+
+    /**
+     * Splits a client command as handleMessage did before CommandParser: a startsWith
+     * chain, substring and split("::", n), decoding FILE_CHUNK data from the String.
+     * @return the total length of the fields
+     */
+    int splitLegacy(String line);
+
+    /** The same with CommandParser, making a String of every field but FILE_CHUNK data. */
+    int parseCommand(String line);
+
+    /** The same from the line's UTF-8 bytes, as the server's line readers parse it. */
+    int parseCommand(byte[] line);
+}
@@ -0,0 +1,44 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending an already encoded message to the message log: the copy into the mapped
+ * segment under the append lock, plus a roll whenever a segment fills. Old segments are
+ * deleted past 256 MB so a run does not fill the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageLogBenchmark {
+    @Param({"64", "1024"})
+    public int messageBytes;
+
+    private Harness harness;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        harness = Harness.load();
+        harness.openLog(256, messageBytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        harness.closeLog();
+    }
+
+    @Benchmark
+    public long broadcast() {
+        return harness.appendToLog("");
+    }
+
+    @Benchmark
+    public long directMessage() {
+        return harness.appendToLog("user1");
+    }
+}
@@ -0,0 +1,71 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting one client command: the startsWith / substring / split path handleMessage used
+ * to take, against CommandParser on a String and on the bytes the readers hold. That both
+ * read every line alike is CommandParserTest's job. Run with -prof gc to compare allocation
+ * per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"chat", "status", "dm", "room", "offer", "chunk"})
+    public String kind;
+
+    private Harness harness;
+    private String line;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        harness = Harness.load();
+        switch (kind) {
+            case "chat":
+                line = "hello everyone, how is it going?";
+                break;
+            case "status":
+                line = "STATUS::Away";
+                break;
+            case "dm":
+                line = "DM::user1::are you around?";
+                break;
+            case "room":
+                line = "ROOM::lobby::anyone up for lunch?";
+                break;
+            case "offer":
+                line = "FILE_OFFER::7::1048576::" + "ab".repeat(32) + "::holiday photos.zip";
+                break;
+            case "chunk":
+                line = "FILE_CHUNK::7::" + Base64.getEncoder().encodeToString(new byte[48 * 1024]);
+                break;
+            default:
+                throw new IllegalArgumentException(kind);
+        }
+        bytes = line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int legacy() {
+        return harness.splitLegacy(line);
+    }
+
+    @Benchmark
+    public int parserString() {
+        return harness.parseCommand(line);
+    }
+
+    @Benchmark
+    public int parserBytes() {
+        return harness.parseCommand(bytes);
+    }
+}
@@ -0,0 +1,30 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Building and encoding the full roster line sent on every presence change to legacy clients. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RosterBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int users;
+
+    private Harness harness;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        harness = Harness.load();
+        harness.register(users);
+    }
+
+    @Benchmark
+    public int rosterLine() {
+        return harness.rosterLine();
+    }
+}
@@ -0,0 +1,216 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * CommandParser against the code it replaced: the server's startsWith / split("::", n)
+ * chain in handleMessage, and ChatClient's receive loop and handleLine. Every line must be
+ * read as the same type with the same fields, from a String and from its UTF-8 bytes.
+ */
+class CommandParserTest {
+    private final CommandParser parser = new CommandParser();
+
+    // Every command in each layout the clients send, plus the edge cases of split("::", n)
+    static List<String> commands() {
+        String chunk = Base64.getEncoder().encodeToString(randomBytes(1000));
+        return Arrays.asList(
+                "hello", "", "::", "a::b", "héllo wörld ✓ :: ok", "STATUS::Away", "STATUS::", "STATUS",
+                "STATUS::Busy::really", "DM::bob::hi there", "DM::bob", "DM::bob::", "DM::::hi", "DM::bob::a::b",
+                "DM::bob:::x", "dm::bob::lower case is chat", "JOIN::lobby", "JOIN::", "JOIN::a::b", "LEAVE::lobby",
+                "ROOM::lobby::hi", "ROOM::lobby", "ROOM::lobby::x::y", "FILE::notes.txt::" + chunk, "FILE::notes.txt",
+                "FILE_OFFER::1::2048::" + "cd".repeat(32) + "::report.pdf", "FILE_OFFER::1::2048::abc",
+                "FILE_OFFER::1::2::h::name::with::colons", "FILE_BEGIN::3::1000::photo.png", "FILE_BEGIN::3::1000",
+                "FILE_CHUNK::3::" + chunk, "FILE_CHUNK::3::not base64!", "FILE_CHUNK::3", "FILE_CHUNK::3::",
+                "FILE_END::3", "FILE_END::3::aborted", "FILE_END::3::done", "FILE_END::", "FILE_ENDX::3",
+                "HELLO::binary", "RESUME::token::5",
+                // empty fields
+                "ROOM::::hi", "ROOM::::", "FILE_OFFER::::::::", "FILE_BEGIN::::::", "FILE::::",
+                // trailing ::
+                "STATUS::Away::", "JOIN::lobby::", "ROOM::lobby::hi::", "FILE_OFFER::1::2::h::", "FILE_END::3::",
+                "hello::",
+                // non-ASCII
+                "STATUS::Ünterwegs ☕", "DM::zoë::grüße aus Köln", "ROOM::lobby::日本語のテキスト",
+                "DM::bob::emoji 😀::and more", "ÉTATUS::Away", "DM::bøb",
+                // invalid Base64
+                "FILE_CHUNK::3::QUJD=", "FILE_CHUNK::3::QUJ", "FILE_CHUNK::3::QU JD", "FILE_CHUNK::3::====",
+                "FILE_CHUNK::3::" + chunk + "::extra", "FILE_CHUNK::3::é");
+    }
+
+    // Every line the server sends text clients, with and without a SEQ prefix
+    static List<String> serverLines() {
+        String data = Base64.getEncoder().encodeToString(randomBytes(300));
+        List<String> lines = new ArrayList<>(Arrays.asList(
+                "alice: hello", "System: Room names are 1-32 letters", "no sender here", "", "Enter your username:",
+                "Online users: alice (Online), bob (Away)", "Online users:", "PRESENCE::snapshot::alice|Online, bob|Away",
+                "PRESENCE::add::carol|Online::status::bob|Busy", "PRESENCE::remove::bob", "PRESENCE::", "PRESENCE::a::",
+                "USER_EVENT::joined::carol", "USER_EVENT::left::carol", "USER_EVENT::joined", "USER_EVENT::joined::a::b",
+                "ROOM::lobby::alice: hi", "ROOM::lobby::alice: a::b", "ROOM::lobby", "ROOM_EVENT::joined::lobby::alice",
+                "ROOM_EVENT::left::lobby", "FILE_REF::alice::" + "ef".repeat(32) + "::4096::notes.txt",
+                "FILE_REF::alice::abc::1", "PRIVATE::alice: psst", "PRIVATE::no sender", "SESSION::0123abcd",
+                "RESUME_FAILED", "RESUME_FAILED::x", "FILE_FROM::alice::a.bin::" + data, "FILE_FROM::alice::a.bin",
+                "FILE_BEGIN::alice::9::300::a.bin", "FILE_BEGIN::alice::9", "FILE_CHUNK::9::" + data,
+                "FILE_END::9", "FILE_END::9::aborted", "FILE_ACK::4::upload", "FILE_ACK::4",
+                "HELLO_OK::binary,presence", "ROOM_EVENTS::x",
+                // empty fields, trailing ::, non-ASCII, invalid Base64
+                "USER_EVENT::::", "ROOM_EVENT::::::", "FILE_REF::::::::", "USER_EVENT::joined::zoë::",
+                "ROOM::café::zoë: ça va?", "PRIVATE::jürgen: 😀", "FILE_FROM::alice::ä.bin::not base64!",
+                "FILE_CHUNK::9::QUJ"));
+        for (String line : lines.toArray(new String[0])) lines.add("SEQ::42::" + line);
+        lines.add("SEQ::7::SEQ::8::nested");
+        lines.add("SEQ::::x");
+        lines.add("SEQ::x1::x");
+        return lines;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    @ParameterizedTest
+    @MethodSource("commands")
+    void readsCommandsAsTheOldServerDid(String line) {
+        String expected = legacyCommand(line);
+        parser.parseCommand(line);
+        assertEquals(expected, parsed(true), "from a String");
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        parser.parseCommand(bytes, 0, bytes.length);
+        assertEquals(expected, parsed(true), "from bytes");
+    }
+
+    @ParameterizedTest
+    @MethodSource("serverLines")
+    void readsServerLinesAsTheOldClientDid(String line) {
+        assertEquals(legacyServerLine(line), parsedServerLine(line));
+    }
+
+    @Test
+    void pongIsOnlyTheWholePrefixedLine() {
+        assertEquals(FrameCodec.PONG, parser.parseCommand("PONG::"));
+        assertEquals(FrameCodec.CHAT, parser.parseCommand("PONG"));
+        assertEquals(FrameCodec.CHAT, parser.parseCommand("PONG::x"));
+    }
+
+    // A line as a type and its fields; FILE_CHUNK data (on commands) as its decoded bytes
+    private static String described(byte type, String... fields) {
+        return type + " " + fields.length + " " + String.join("\u0000", fields);
+    }
+
+    private String parsed(boolean decodeChunks) {
+        String[] fields = new String[parser.fieldCount()];
+        for (int i = 0; i < fields.length; i++) fields[i] = parser.field(i);
+        if (decodeChunks && parser.type() == FrameCodec.FILE_CHUNK && fields.length == 2) {
+            fields[1] = decodedOrInvalid(() -> parser.base64Field(1));
+        }
+        return described(parser.type(), fields);
+    }
+
+    private static String decodedOrInvalid(Supplier<byte[]> decode) {
+        try {
+            return Arrays.toString(decode.get());
+        } catch (IllegalArgumentException e) {
+            return "invalid";
+        }
+    }
+
+    // handleMessage before CommandParser
+    private static String legacyCommand(String message) {
+        if (message.startsWith("STATUS::")) return described(FrameCodec.STATUS, message.substring("STATUS::".length()));
+        if (message.startsWith("FILE::")) return described(FrameCodec.FILE, message.substring("FILE::".length()).split("::", 2));
+        if (message.startsWith("FILE_OFFER::")) return described(FrameCodec.FILE_OFFER, message.substring("FILE_OFFER::".length()).split("::", 4));
+        if (message.startsWith("FILE_BEGIN::")) return described(FrameCodec.FILE_BEGIN, message.substring("FILE_BEGIN::".length()).split("::", 3));
+        if (message.startsWith("FILE_CHUNK::")) {
+            String[] parts = message.substring("FILE_CHUNK::".length()).split("::", 2);
+            if (parts.length == 2) parts[1] = decodedOrInvalid(() -> Base64.getDecoder().decode(parts[1]));
+            return described(FrameCodec.FILE_CHUNK, parts);
+        }
+        if (message.startsWith("FILE_END::")) return described(FrameCodec.FILE_END, message.substring("FILE_END::".length()).split("::", 2));
+        if (message.startsWith("JOIN::")) return described(FrameCodec.JOIN, message.substring("JOIN::".length()));
+        if (message.startsWith("LEAVE::")) return described(FrameCodec.LEAVE, message.substring("LEAVE::".length()));
+        if (message.startsWith("ROOM::")) return described(FrameCodec.ROOM_CHAT, message.substring("ROOM::".length()).split("::", 2));
+        if (message.startsWith("DM::")) return described(FrameCodec.DM, message.substring("DM::".length()).split("::", 2));
+        return described(FrameCodec.CHAT, message);
+    }
+
+    // ChatClient's receive loop and handleLine before CommandParser, as prefix order and splits
+    private static String legacyServerLine(String message) {
+        String seq = "";
+        if (message.startsWith("SEQ::")) {
+            int end = message.indexOf("::", "SEQ::".length());
+            if (end < 0) return "malformed";
+            try {
+                seq = "seq " + Long.parseLong(message.substring("SEQ::".length(), end)) + " ";
+            } catch (NumberFormatException e) {
+                // the old client dropped the connection
+                return "malformed";
+            }
+            message = message.substring(end + 2);
+        }
+        String[] parts;
+        byte type;
+        if (message.startsWith("SESSION::")) {
+            return seq + described(FrameCodec.SESSION, message.substring("SESSION::".length()));
+        } else if ("RESUME_FAILED".equals(message)) {
+            return seq + described(CommandParser.RESUME_FAILED);
+        } else if (message.startsWith("FILE_FROM::")) {
+            parts = message.split("::", 4);
+            type = FrameCodec.FILE_FROM;
+        } else if (message.startsWith("FILE_BEGIN::")) {
+            return seq + described(FrameCodec.FILE_BEGIN, message.substring("FILE_BEGIN::".length()).split("::", 4));
+        } else if (message.startsWith("FILE_CHUNK::")) {
+            return seq + described(FrameCodec.FILE_CHUNK, message.substring("FILE_CHUNK::".length()).split("::", 2));
+        } else if (message.startsWith("FILE_END::")) {
+            return seq + described(FrameCodec.FILE_END, message.substring("FILE_END::".length()).split("::", 2));
+        } else if (message.startsWith("FILE_ACK::")) {
+            return seq + described(FrameCodec.FILE_ACK, message.substring("FILE_ACK::".length()).split("::", 2));
+        } else if (message.startsWith("Online users:")) {
+            return seq + described(CommandParser.ONLINE_USERS, message.substring("Online users:".length()));
+        } else if (message.startsWith("PRESENCE::")) {
+            return seq + described(FrameCodec.PRESENCE, message.substring("PRESENCE::".length()).split("::", -1));
+        } else if (message.startsWith("USER_EVENT::")) {
+            parts = message.split("::", 3);
+            type = FrameCodec.USER_EVENT;
+        } else if (message.startsWith("ROOM::")) {
+            parts = message.split("::", 3);
+            type = FrameCodec.ROOM_CHAT;
+        } else if (message.startsWith("ROOM_EVENT::")) {
+            parts = message.split("::", 4);
+            type = FrameCodec.ROOM_EVENT;
+        } else if (message.startsWith("FILE_REF::")) {
+            parts = message.split("::", 5);
+            type = FrameCodec.FILE_REF;
+        } else if (message.startsWith("PRIVATE::")) {
+            return seq + described(FrameCodec.PRIVATE, message.substring("PRIVATE::".length()));
+        } else {
+            return seq + described(FrameCodec.CHAT, message);
+        }
+        return seq + described(type, Arrays.copyOfRange(parts, 1, parts.length));
+    }
+
+    // The same as ChatClient reads it now
+    private String parsedServerLine(String line) {
+        String seq = "";
+        int from = 0;
+        if (parser.parseServerLine(line, 0) == CommandParser.SEQ) {
+            long n = parser.longField(0);
+            if (parser.fieldCount() != 2 || n < 0) return "malformed";
+            seq = "seq " + n + " ";
+            from = parser.start(1);
+            parser.parseServerLine(line, from);
+        }
+        // a SEQ inside SEQ is shown as chat, as before
+        if (parser.type() == CommandParser.SEQ) return seq + described(FrameCodec.CHAT, line.substring(from));
+        return seq + parsed(false);
+    }
+}
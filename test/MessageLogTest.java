@@ -0,0 +1,134 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageLogTest {
+    private static final int SEGMENT_BYTES = 4096;
+
+    private Path dir;
+    private MessageLog log;
+
+    @BeforeEach
+    void open() throws IOException {
+        dir = Files.createTempDirectory("message-log-test");
+        log = reopen();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        log.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    private MessageLog reopen() throws IOException {
+        return new MessageLog(dir, SEGMENT_BYTES, 1000, 0, Long.MAX_VALUE, TimeUnit.DAYS.toMillis(1));
+    }
+
+    private static EncodedMessage chat(int length) {
+        char[] text = new char[length];
+        Arrays.fill(text, 'x');
+        return EncodedMessage.frame(FrameCodec.CHAT, "alice", new String(text));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private List<byte[]> frames() throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        log.read(0, (offset, timestamp, target, frame) -> frames.add(bytes(frame)));
+        return frames;
+    }
+
+    private static byte[] encoded(EncodedMessage message) {
+        return bytes(message.forProtocol(EncodedMessage.BINARY).buffer());
+    }
+
+    @Test
+    void firstRecordLargerThanSegment() throws IOException {
+        EncodedMessage big = chat(SEGMENT_BYTES * 3);
+        EncodedMessage small = chat(10);
+        assertEquals(0, log.append("", big));
+        List<byte[]> alone = frames();
+        assertEquals(1, alone.size(), "the grown segment is read once");
+        assertArrayEquals(encoded(big), alone.get(0));
+
+        long next = log.append("", small);
+        assertTrue(next > SEGMENT_BYTES * 3, "offsets move past the large record");
+
+        List<byte[]> frames = frames();
+        assertEquals(2, frames.size());
+        assertArrayEquals(encoded(big), frames.get(0));
+        assertArrayEquals(encoded(small), frames.get(1));
+    }
+
+    @Test
+    void largeRecordAfterSmallOnesRollsToANewSegment() throws IOException {
+        EncodedMessage small = chat(10);
+        EncodedMessage big = chat(SEGMENT_BYTES * 2);
+        long first = log.append("", small);
+        long second = log.append("bob", big);
+        long third = log.append("", small);
+        assertTrue(first < second && second < third);
+
+        List<byte[]> frames = frames();
+        assertEquals(3, frames.size());
+        assertArrayEquals(encoded(big), frames.get(1));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(3, files.count(), "one segment per roll, none mapped twice");
+        }
+    }
+
+    @Test
+    void retentionKeepsAGrownSegment() throws IOException {
+        log.close();
+        log = new MessageLog(dir, SEGMENT_BYTES, 1000, 0, SEGMENT_BYTES, TimeUnit.DAYS.toMillis(1));
+        EncodedMessage big = chat(SEGMENT_BYTES * 2);
+        log.append("", big);
+        log.sync();
+        assertEquals(1, frames().size());
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void largeRecordSurvivesReopening() throws IOException {
+        EncodedMessage big = chat(SEGMENT_BYTES * 2);
+        log.append("", big);
+        log.close();
+        log = reopen();
+        EncodedMessage small = chat(10);
+        log.append("", small);
+
+        List<byte[]> frames = frames();
+        assertEquals(2, frames.size());
+        assertArrayEquals(encoded(big), frames.get(0));
+        assertArrayEquals(encoded(small), frames.get(1));
+    }
+
+    @Test
+    void rejectsTargetLongerThanARecordHolds() throws IOException {
+        char[] target = new char[MessageLog.MAX_TARGET + 1];
+        Arrays.fill(target, 'b');
+        assertThrows(IllegalArgumentException.class, () -> log.append(new String(target), chat(10)));
+        assertEquals(0, log.append(new String(target, 0, MessageLog.MAX_TARGET), chat(10)));
+    }
+}
@@ -0,0 +1,37 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReceivedSeqsTest {
+    @Test
+    void skipsRepeatsButNotMessagesThatWereOvertaken() {
+        ReceivedSeqs received = new ReceivedSeqs(8);
+        assertTrue(received.add(40));
+        assertTrue(received.add(10), "sent at the same time as 40, queued after it");
+        assertFalse(received.add(40));
+        assertFalse(received.add(10));
+        assertTrue(received.add(70));
+    }
+
+    @Test
+    void resumesAfterTheOldestRemembered() {
+        ReceivedSeqs received = new ReceivedSeqs(3);
+        assertEquals(-1, received.resumeAfter());
+        received.add(40);
+        received.add(10);
+        received.add(70);
+        assertEquals(10, received.resumeAfter());
+        received.add(90);
+        assertEquals(10, received.resumeAfter());
+        assertTrue(received.add(40), "40 was received longest ago and is forgotten");
+    }
+
+    @Test
+    void clearForgetsEverything() {
+        ReceivedSeqs received = new ReceivedSeqs(8);
+        received.add(5);
+        received.clear();
+        assertEquals(-1, received.resumeAfter());
+        assertTrue(received.add(5));
+    }
+}